@@ -0,0 +1,66 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+public class AdaptiveFlushPolicyTest extends AndroidTestCase {
+
+    public void testEmptyQueueIsNotFlushed() {
+        assertEquals(-1, mPolicy.getFlushDelay(0, -1, 0, 0, true));
+        assertEquals(-1, mPolicy.getFlushDelay(0, 1000, 0, 0, false));
+    }
+
+    public void testFlushesLikeTheDefaultPolicyOnWifi() {
+        assertEquals(0, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT, -1, 0, 0, true));
+        assertEquals(FLUSH_INTERVAL, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT - 1, -1, 0, 0, true));
+        // Neither a recent upload nor a slow link changes anything on Wi-Fi
+        assertEquals(FLUSH_INTERVAL, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4, 1000, 0, 0, true));
+        assertEquals(FLUSH_INTERVAL, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT - 1, -1, 0, 5000, true));
+    }
+
+    public void testFlushesWhileTheRadioIsStillAwake() {
+        // A quarter of the bulk limit is worth sending while the radio is up from the last upload
+        assertEquals(0, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4, 5000, 0, 0, false));
+        assertEquals(0, mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4, 0, 0, 0, null));
+        assertTrue(mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4 - 1, 5000, 0, 0, false) > 0);
+
+        // After the tail, or without any upload yet, the same batch waits
+        assertTrue(mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4, 10 * 1000, 0, 0, false) > 0);
+        assertTrue(mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT / 4, -1, 0, 0, false) > 0);
+    }
+
+    public void testWaitsForLargerBatchesOnSlowLinks() {
+        final int meteredLimit = BULK_UPLOAD_LIMIT * 4;
+        assertTrue(mPolicy.getFlushDelay(BULK_UPLOAD_LIMIT, -1, 0, 0, false) > 0);
+        assertEquals(0, mPolicy.getFlushDelay(meteredLimit, -1, 0, 0, false));
+        assertEquals(0, mPolicy.getFlushDelay(meteredLimit, -1, 0, 1000, false));
+
+        // Above a second per upload on average the batches double
+        assertTrue(mPolicy.getFlushDelay(meteredLimit, -1, 0, 1001, false) > 0);
+        assertTrue(mPolicy.getFlushDelay(meteredLimit * 2 - 1, -1, 0, 5000, null) > 0);
+        assertEquals(0, mPolicy.getFlushDelay(meteredLimit * 2, -1, 0, 5000, null));
+    }
+
+    public void testScheduledFlushesFollowTheAppsFlushesUpToACap() {
+        // Never sooner than the flush interval
+        assertEquals(FLUSH_INTERVAL, mPolicy.getFlushDelay(1, -1, 0, 0, false));
+        assertEquals(FLUSH_INTERVAL, mPolicy.getFlushDelay(1, -1, FLUSH_INTERVAL / 2, 0, false));
+
+        assertEquals(2 * FLUSH_INTERVAL, mPolicy.getFlushDelay(1, -1, 2 * FLUSH_INTERVAL, 0, false));
+
+        // Never later than four flush intervals
+        assertEquals(4 * FLUSH_INTERVAL, mPolicy.getFlushDelay(1, -1, 4 * FLUSH_INTERVAL, 0, false));
+        assertEquals(4 * FLUSH_INTERVAL, mPolicy.getFlushDelay(1, -1, 100 * FLUSH_INTERVAL, 0, null));
+    }
+
+    public void testNegativeFlushIntervalSchedulesNothing() {
+        final AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(BULK_UPLOAD_LIMIT, -1);
+        assertEquals(-1, policy.getFlushDelay(1, -1, 0, 0, false));
+        // Full batches are still flushed
+        assertEquals(0, policy.getFlushDelay(BULK_UPLOAD_LIMIT * 4, -1, 0, 0, false));
+    }
+
+    private final AdaptiveFlushPolicy mPolicy = new AdaptiveFlushPolicy(BULK_UPLOAD_LIMIT, FLUSH_INTERVAL);
+
+    private static final int BULK_UPLOAD_LIMIT = 40;
+    private static final long FLUSH_INTERVAL = 60 * 1000;
+}
@@ -0,0 +1,338 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteResponse;
+import com.mixpanel.android.util.RemoteService;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Runs flushes through AnalyticsMessages with an InMemoryEventStore and a stub RemoteService,
+ * and checks what is uploaded and what is left in the store.
+ */
+public class AnalyticsMessagesFlushTest extends AndroidTestCase {
+
+    public void testPipelinedBatchesAreAcknowledgedInOrder() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxEventsPerRequest", 2);
+        metaData.putInt("com.mixpanel.android.MPConfig.UploadWindow", 3);
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushPrefetchDepth", 2);
+        final List<Long> acknowledged = Collections.synchronizedList(new ArrayList<Long>());
+        final RecordingStore store = new RecordingStore(config(metaData), acknowledged);
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final AnalyticsMessages messages = messages(store, new StubRemoteService(requests) {
+            @Override
+            protected RemoteResponse respond(String endpointUrl, String postBody) {
+                return ok(postBody);
+            }
+        });
+
+        enqueueEvents(messages, store, 10);
+        messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, false));
+        assertTrue(waitForDepth(store, 0));
+
+        assertEquals(5, requests.size());
+        assertEquals(5, acknowledged.size());
+        for (int i = 1; i < acknowledged.size(); i++) {
+            assertTrue(acknowledged.get(i - 1) < acknowledged.get(i));
+        }
+        messages.hardKill();
+    }
+
+    public void testFailedBatchIsNotSkippedByLaterSuccesses() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxEventsPerRequest", 2);
+        metaData.putInt("com.mixpanel.android.MPConfig.UploadWindow", 3);
+        final List<Long> acknowledged = Collections.synchronizedList(new ArrayList<Long>());
+        final RecordingStore store = new RecordingStore(config(metaData), acknowledged);
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch lastBatchPosted = new CountDownLatch(1);
+        final AnalyticsMessages messages = messages(store, new StubRemoteService(requests) {
+            @Override
+            protected RemoteResponse respond(String endpointUrl, String postBody) throws IOException {
+                if (postBody.contains("\"index\":2")) {
+                    // The middle batch fails only after the batch behind it succeeded
+                    try {
+                        lastBatchPosted.await(10, TimeUnit.SECONDS);
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("Middle batch fails");
+                }
+                if (postBody.contains("\"index\":4")) {
+                    lastBatchPosted.countDown();
+                }
+                return ok(postBody);
+            }
+        });
+
+        enqueueEvents(messages, store, 6);
+        messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, false));
+        assertTrue(waitForRequests(requests, 3));
+        assertTrue(waitForDepth(store, 4));
+        Thread.sleep(200);
+
+        // Only the first batch is gone, the failed one and the one after it wait for the retry.
+        // Checked before hardKill(), which drops the project's records.
+        assertEquals(1, acknowledged.size());
+        assertEquals(4, store.depth(MPDbAdapter.Table.EVENTS, TOKEN, false));
+        final EventStore.Batch remaining = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID);
+        assertEquals(2, new JSONObject(remaining.getData().split("\n")[0]).getJSONObject("payload").getInt("index"));
+        messages.hardKill();
+    }
+
+    public void testPeopleUpdatesAreSentToThePeopleEndpoint() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxPeopleUpdatesPerRequest", 2);
+        final RecordingStore store = new RecordingStore(config(metaData), new ArrayList<Long>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final AnalyticsMessages messages = messages(store, new StubRemoteService(requests) {
+            @Override
+            protected RemoteResponse respond(String endpointUrl, String postBody) {
+                return ok(postBody);
+            }
+        });
+
+        // Every update is for another profile, so none of them are merged
+        for (int i = 0; i < 5; i++) {
+            final JSONObject update = new JSONObject();
+            update.put("$token", TOKEN);
+            update.put("$distinct_id", "person " + i);
+            update.put("$set", new JSONObject().put("index", i));
+            messages.peopleMessage(new AnalyticsMessages.PeopleDescription(update, TOKEN));
+        }
+        assertTrue(waitForDepth(store, MPDbAdapter.Table.PEOPLE, 5));
+        messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, false));
+        assertTrue(waitForDepth(store, MPDbAdapter.Table.PEOPLE, 0));
+
+        assertEquals(3, requests.size());
+        final int[] expectedUpdates = { 2, 2, 1 };
+        for (int i = 0; i < requests.size(); i++) {
+            final String request = requests.get(i);
+            assertTrue(request.startsWith(PEOPLE_ENDPOINT + " "));
+            final String[] updates = request.substring(PEOPLE_ENDPOINT.length() + 1).split("\n");
+            assertEquals(expectedUpdates[i], updates.length);
+            assertEquals("person " + 2 * i, new JSONObject(updates[0]).getString("$distinct_id"));
+        }
+        messages.hardKill();
+    }
+
+    public void testBuilderEventsAreStampedLikeJsonEvents() throws Exception {
+        final RecordingStore store = new RecordingStore(config(new Bundle()), new ArrayList<Long>());
+        final AnalyticsMessages messages = messages(store, new StubRemoteService(new ArrayList<String>()) {
+            @Override
+            protected RemoteResponse respond(String endpointUrl, String postBody) {
+                return ok(postBody);
+            }
+        });
+
+        // time given by the caller as a number or a numeric string, or by a super property
+        final Object[] times = { 1500000000123L, "1500000000123", 1500000000123.0, "not a time" };
+        for (int i = 0; i < times.length; i++) {
+            final JSONObject superProperties = new JSONObject();
+            superProperties.put("time", times[i]);
+            final AnalyticsMessages.EventPropertiesBuilder propertiesBuilder = new AnalyticsMessages.EventPropertiesBuilder() {
+                @Override
+                public JSONObject buildProperties() throws JSONException {
+                    return new JSONObject(superProperties.toString());
+                }
+
+                @Override
+                public void addDefaults(EventBuilder eventBuilder) {
+                    eventBuilder.putDefaults(superProperties);
+                }
+            };
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("json_event", propertiesBuilder, TRACKED_AT, TOKEN, false));
+            messages.eventsMessage(new AnalyticsMessages.EventDescription(EventBuilder.obtain("builder_event"), propertiesBuilder, TRACKED_AT, TOKEN));
+            final EventBuilder stringTime = EventBuilder.obtain("builder_event");
+            stringTime.putString("time", String.valueOf(times[i]));
+            messages.eventsMessage(new AnalyticsMessages.EventDescription(stringTime, propertiesBuilder, TRACKED_AT, TOKEN));
+            assertTrue(waitForDepth(store, 3 * (i + 1)));
+        }
+
+        final String[] events = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID).getData().split("\n");
+        assertEquals(3 * times.length, events.length);
+        for (int i = 0; i < events.length; i += 3) {
+            final long expected = i / 3 == times.length - 1 ? TRACKED_AT : 1500000000123L;
+            assertEquals(expected, new JSONObject(events[i]).getLong("ts"));
+            assertEquals(expected, new JSONObject(events[i + 1]).getLong("ts"));
+            assertEquals(expected, new JSONObject(events[i + 2]).getLong("ts"));
+        }
+        messages.hardKill();
+    }
+
+    public void testNegativePolicyDelaySchedulesNoFlush() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 2);
+        metaData.putInt("com.mixpanel.android.MPConfig.FlushInterval", 10);
+        final RecordingStore store = new RecordingStore(config(metaData), new ArrayList<Long>());
+        final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+        final AnalyticsMessages messages = messages(store, new StubRemoteService(requests) {
+            @Override
+            protected RemoteResponse respond(String endpointUrl, String postBody) {
+                return ok(postBody);
+            }
+        });
+        final List<Integer> queueDepths = Collections.synchronizedList(new ArrayList<Integer>());
+        final AtomicLong policyDelay = new AtomicLong(-1);
+        store.getConfig().setFlushPolicy(new FlushPolicy() {
+            @Override
+            public long getFlushDelay(int queueDepth, long millisSinceLastUpload, long averageFlushInterval,
+                    long averageUploadLatency, Boolean isWifiConnected) {
+                queueDepths.add(queueDepth);
+                return policyDelay.get();
+            }
+        });
+
+        // Past both the bulk limit and the flush interval, which would have flushed without the policy
+        enqueueEvents(messages, store, 5);
+        Thread.sleep(200);
+        // Events written together are one write, so the policy may be asked fewer times than there are events
+        assertEquals(5, (int) queueDepths.get(queueDepths.size() - 1));
+        assertEquals(0, requests.size());
+        assertEquals(5, store.depth(MPDbAdapter.Table.EVENTS, TOKEN, true));
+
+        policyDelay.set(10);
+        messages.eventsMessage(new AnalyticsMessages.EventDescription("test_event", new JSONObject(), TOKEN, false));
+        assertTrue(waitForDepth(store, 0));
+        assertEquals(1, requests.size());
+        messages.hardKill();
+    }
+
+    private MPConfig config(Bundle metaData) {
+        return new MPConfig(metaData, getContext()) {
+            @Override
+            public String getEventsEndpoint() {
+                return EVENTS_ENDPOINT;
+            }
+
+            @Override
+            public List<String> getEventsFallbackEndpoints() {
+                return Collections.emptyList();
+            }
+
+            @Override
+            public String getPeopleEndpoint() {
+                return PEOPLE_ENDPOINT;
+            }
+        };
+    }
+
+    private AnalyticsMessages messages(final RecordingStore store, final RemoteService remoteService) {
+        final MPConfig config = store.getConfig();
+        config.setRemoteService(remoteService);
+        return new AnalyticsMessages(getContext(), TOKEN) {
+            @Override
+            protected EventStore makeDbAdapter(Context context, String token) {
+                return store;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context, String token) {
+                return config;
+            }
+        };
+    }
+
+    private static void enqueueEvents(AnalyticsMessages messages, EventStore store, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final JSONObject properties = new JSONObject();
+            properties.put("index", i);
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("test_event", properties, TOKEN, false));
+        }
+        assertTrue(waitForDepth(store, count));
+    }
+
+    private static boolean waitForDepth(EventStore store, int depth) throws InterruptedException {
+        return waitForDepth(store, MPDbAdapter.Table.EVENTS, depth);
+    }
+
+    private static boolean waitForDepth(EventStore store, MPDbAdapter.Table table, int depth) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (store.depth(table, TOKEN, true) != depth) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static boolean waitForRequests(List<String> requests, int count) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (requests.size() < count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static RemoteResponse ok(String postBody) {
+        return new RemoteResponse(200, "1", "1", postBody.length(), postBody.length());
+    }
+
+    // Keeps the ids every ack was called with
+    private static class RecordingStore extends InMemoryEventStore {
+        public RecordingStore(MPConfig config, List<Long> acknowledged) {
+            super(config, 1000);
+            mConfig = config;
+            mAcknowledged = acknowledged;
+        }
+
+        @Override
+        public synchronized void ack(MPDbAdapter.Table table, String token, long lastId, boolean includeAutomaticEvents) {
+            mAcknowledged.add(lastId);
+            super.ack(table, token, lastId, includeAutomaticEvents);
+        }
+
+        public MPConfig getConfig() {
+            return mConfig;
+        }
+
+        private final MPConfig mConfig;
+        private final List<Long> mAcknowledged;
+    }
+
+    private static abstract class StubRemoteService implements RemoteService {
+        public StubRemoteService(List<String> requests) {
+            mRequests = requests;
+        }
+
+        @Override
+        public boolean isOnline(Context context, OfflineMode offlineMode) {
+            return true;
+        }
+
+        @Override
+        public void checkIsMixpanelBlocked() {
+        }
+
+        @Override
+        public RemoteResponse performRequest(String endpointUrl, String postBody) throws ServiceUnavailableException, IOException {
+            mRequests.add(endpointUrl + " " + postBody);
+            return respond(endpointUrl, postBody);
+        }
+
+        protected abstract RemoteResponse respond(String endpointUrl, String postBody) throws ServiceUnavailableException, IOException;
+
+        private final List<String> mRequests;
+    }
+
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+    private static final long TRACKED_AT = 1400000000000L;
+    private static final String TOKEN = "FLUSH_TEST_TOKEN";
+    private static final String EVENTS_ENDPOINT = "EVENTS ENDPOINT";
+    private static final String PEOPLE_ENDPOINT = "PEOPLE ENDPOINT";
+}
@@ -0,0 +1,36 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+
+public class AnalyticsMessagesThreadTest extends AndroidTestCase {
+
+    public void testWorkerThreadCountIsConstantAcrossTokens() {
+        AnalyticsMessages.getInstance(getContext(), "THREAD_TEST_TOKEN_0");
+        final int workersWithOneToken = countWorkerThreads();
+        assertEquals(1, workersWithOneToken);
+
+        for (int i = 1; i < TOKEN_COUNT; i++) {
+            AnalyticsMessages.getInstance(getContext(), "THREAD_TEST_TOKEN_" + i);
+            assertEquals(workersWithOneToken, countWorkerThreads());
+        }
+    }
+
+    public void testOneInstancePerToken() {
+        final AnalyticsMessages first = AnalyticsMessages.getInstance(getContext(), "THREAD_TEST_TOKEN_A");
+        assertSame(first, AnalyticsMessages.getInstance(getContext(), "THREAD_TEST_TOKEN_A"));
+        assertNotSame(first, AnalyticsMessages.getInstance(getContext(), "THREAD_TEST_TOKEN_B"));
+    }
+
+    private static int countWorkerThreads() {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (WORKER_THREAD_NAME.equals(thread.getName()) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static final int TOKEN_COUNT = 20;
+    private static final String WORKER_THREAD_NAME = "com.mixpanel.android.AnalyticsWorker";
+}
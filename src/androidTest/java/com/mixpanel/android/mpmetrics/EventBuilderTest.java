@@ -0,0 +1,88 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import java.util.HashMap;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class EventBuilderTest extends AndroidTestCase {
+
+    public void testWritesValidJson() throws JSONException {
+        final EventBuilder builder = EventBuilder.obtain("Test Event")
+                .putLong("long", Long.MAX_VALUE)
+                .putDouble("double", 1.5)
+                .putDouble("whole double", 3.0)
+                .putBoolean("boolean", true)
+                .putString("string", "quote \" slash \\ newline \n tab \t control \u0001 unicode é");
+
+        final JSONObject written = write(builder);
+        assertEquals(5, written.length());
+        assertEquals(Long.MAX_VALUE, written.getLong("long"));
+        assertEquals(1.5, written.getDouble("double"));
+        assertEquals(3, written.getInt("whole double"));
+        assertTrue(written.getBoolean("boolean"));
+        assertEquals("quote \" slash \\ newline \n tab \t control \u0001 unicode é", written.getString("string"));
+    }
+
+    public void testPutReplacesAndRemoves() throws JSONException {
+        final EventBuilder builder = EventBuilder.obtain("Test Event")
+                .putLong("a", 1)
+                .putString("b", "b")
+                .putLong("c", 3)
+                .putString("a", "replaced")
+                .putString("b", null);
+
+        final JSONObject written = write(builder);
+        assertEquals(2, written.length());
+        assertEquals("replaced", written.getString("a"));
+        assertEquals(3, written.getLong("c"));
+        assertFalse(written.has("b"));
+    }
+
+    public void testDefaultsNeverReplaceProperties() throws JSONException {
+        final EventBuilder builder = EventBuilder.obtain("Test Event").putString("shared", "caller");
+
+        final JSONObject superProperties = new JSONObject();
+        superProperties.put("shared", "super");
+        superProperties.put("array", new JSONArray("[1, \"two\"]"));
+        builder.putDefaults(superProperties);
+
+        final Map<String, String> referrerProperties = new HashMap<String, String>();
+        referrerProperties.put("shared", "referrer");
+        referrerProperties.put("utm_source", "source");
+        builder.putDefaults(referrerProperties);
+
+        final JSONObject written = write(builder);
+        assertEquals("caller", written.getString("shared"));
+        assertEquals("two", written.getJSONArray("array").getString(1));
+        assertEquals("source", written.getString("utm_source"));
+    }
+
+    public void testManyProperties() throws JSONException {
+        final EventBuilder builder = EventBuilder.obtain("Test Event");
+        for (int i = 0; i < 100; i++) {
+            builder.putLong("property " + i, i);
+        }
+        final JSONObject written = write(builder);
+        assertEquals(100, written.length());
+        assertEquals(99, written.getLong("property 99"));
+    }
+
+    public void testRecycledBuildersAreEmpty() {
+        final EventBuilder builder = EventBuilder.obtain("Test Event").putLong("a", 1);
+        builder.recycle();
+
+        final EventBuilder reused = EventBuilder.obtain("Another Event");
+        assertEquals(0, reused.size());
+        assertEquals("Another Event", reused.getEventName());
+    }
+
+    private static JSONObject write(EventBuilder builder) throws JSONException {
+        final StringBuilder out = new StringBuilder("{");
+        builder.writeProperties(out, false);
+        out.append('}');
+        return new JSONObject(out.toString());
+    }
+}
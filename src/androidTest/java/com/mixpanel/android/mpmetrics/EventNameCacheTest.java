@@ -0,0 +1,42 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import java.util.Locale;
+
+public class EventNameCacheTest extends AndroidTestCase {
+
+    public void testNormalizesLikeBefore() {
+        final String[] names = { "", "signup", "Sign Up", "in-app purchase", "ALREADY_NORMAL", "a--b  c",
+                "$app_open", "\u00C9mission Termin\u00E9e", "\u0130stanbul Visit", "stra\u00DFe-\u00D6ffnen", "tab\tname" };
+        for (final String name : names) {
+            assertEquals(name, name.toLowerCase(Locale.ENGLISH).replace(" ", "_").replace("-", "_"),
+                    EventNameCache.normalizeName(name));
+        }
+    }
+
+    public void testUnchangedNamesAreNotCopied() {
+        final String name = "already_normal";
+        assertSame(name, EventNameCache.normalizeName(name));
+    }
+
+    public void testCountsHitsAndMisses() {
+        final EventNameCache cache = new EventNameCache(10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("button_tapped", cache.normalize("Button Tapped"));
+            assertEquals("screen_view", cache.normalize("screen-view"));
+        }
+        assertEquals(2, cache.getMisses());
+        assertEquals(198, cache.getHits());
+        assertEquals(2, cache.size());
+    }
+
+    public void testStaysBounded() {
+        final EventNameCache cache = new EventNameCache(10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals("event_" + i, cache.normalize("Event " + i));
+        }
+        assertEquals(10, cache.size());
+        assertEquals("event_99", cache.normalize("Event 99"));
+        assertEquals(101, cache.getMisses());
+    }
+}
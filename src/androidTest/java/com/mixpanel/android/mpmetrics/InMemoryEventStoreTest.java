@@ -0,0 +1,155 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteResponse;
+import com.mixpanel.android.util.RemoteService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class InMemoryEventStoreTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        mConfig = new MPConfig(new Bundle(), getContext()) {
+            @Override
+            public String getEventsEndpoint() {
+                return "EVENTS ENDPOINT";
+            }
+        };
+    }
+
+    public void testBatchesAndAcknowledges() throws JSONException {
+        final InMemoryEventStore store = new InMemoryEventStore(mConfig, 100);
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new MPDbAdapter.Record(event(i), TOKEN, MPDbAdapter.Table.EVENTS, i % 2 == 0));
+        }
+        records.add(new MPDbAdapter.Record(event(10), "OTHER_TOKEN", MPDbAdapter.Table.EVENTS, false));
+        assertEquals(10, store.append(records));
+
+        final EventStore.Batch regular = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID);
+        assertEquals(5, regular.getCount());
+        assertEquals(5, regular.getDepth());
+        assertEquals(1, new JSONObject(regular.getData().split("\n")[0]).getInt("index"));
+        assertNull(store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, regular.getLastId()));
+
+        store.ack(MPDbAdapter.Table.EVENTS, TOKEN, regular.getLastId(), false);
+        assertEquals(0, store.depth(MPDbAdapter.Table.EVENTS, TOKEN, false));
+        assertEquals(5, store.depth(MPDbAdapter.Table.EVENTS, TOKEN, true));
+
+        final EventStore.Batch all = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, EventStore.NO_ID);
+        assertEquals(5, all.getCount());
+        assertEquals(8, new JSONObject(all.getData().split("\n")[4]).getInt("index"));
+        assertEquals(1, store.depth(MPDbAdapter.Table.EVENTS, "OTHER_TOKEN", true));
+    }
+
+    public void testFullRingRejectsRecords() throws JSONException {
+        final InMemoryEventStore store = new InMemoryEventStore(mConfig, 4);
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            records.add(new MPDbAdapter.Record(event(i), TOKEN, MPDbAdapter.Table.EVENTS, false));
+        }
+        assertEquals(3, store.append(records));
+        assertEquals(MPDbAdapter.DB_OUT_OF_MEMORY_ERROR, store.append(records));
+
+        // Acknowledging the oldest records frees their slots for new ones, around the end of the ring
+        final EventStore.Batch batch = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID);
+        store.ack(MPDbAdapter.Table.EVENTS, TOKEN, batch.getLastId(), false);
+        assertEquals(3, store.append(records));
+        assertEquals(3, store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID).getCount());
+    }
+
+    public void testBatchesAreBoundedByUtf8Bytes() throws Exception {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.MaxRequestBytes", 400);
+        final InMemoryEventStore store = new InMemoryEventStore(new MPConfig(metaData, getContext()), 100);
+        final StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            name.append('\u20AC'); // Three bytes in UTF-8
+        }
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new MPDbAdapter.Record(new JSONObject().put("event", name.toString()), TOKEN, MPDbAdapter.Table.EVENTS, false));
+        }
+        store.append(records);
+
+        // Each record is 62 chars but 162 bytes, so only two fit
+        final EventStore.Batch batch = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, false, EventStore.NO_ID);
+        assertEquals(2, batch.getCount());
+        assertTrue(batch.getData().getBytes("UTF-8").length <= 400);
+    }
+
+    /**
+     * Runs events through the whole AnalyticsMessages pipeline, from enqueueing to acknowledged
+     * uploads, with the in-memory store and a remote service that accepts everything, and reports
+     * the result to the log under the "MixpanelAPI.Benchmark" tag.
+     */
+    public void testPipelineBenchmark() throws JSONException, InterruptedException {
+        final AtomicInteger uploadedRecords = new AtomicInteger();
+        mConfig.setRemoteService(new RemoteService() {
+            @Override
+            public boolean isOnline(Context context, OfflineMode offlineMode) {
+                return true;
+            }
+
+            @Override
+            public void checkIsMixpanelBlocked() {
+            }
+
+            @Override
+            public RemoteResponse performRequest(String endpointUrl, String postBody) {
+                uploadedRecords.addAndGet(postBody.split("\n").length);
+                return new RemoteResponse(200, "1", "1", postBody.length(), postBody.length());
+            }
+        });
+        final InMemoryEventStore store = new InMemoryEventStore(mConfig, PIPELINE_EVENTS);
+        // Inside the subclass mConfig would be AnalyticsMessages' own field, still null while it is constructed
+        final MPConfig config = mConfig;
+        final AnalyticsMessages messages = new AnalyticsMessages(getContext(), TOKEN) {
+            @Override
+            protected EventStore makeDbAdapter(Context context, String token) {
+                return store;
+            }
+
+            @Override
+            protected MPConfig getConfig(Context context, String token) {
+                return config;
+            }
+        };
+
+        final JSONObject properties = MPDbAdapterBenchmarkTest.sampleEvent().getJSONObject("properties");
+        final long start = System.nanoTime();
+        for (int i = 0; i < PIPELINE_EVENTS; i++) {
+            messages.eventsMessage(new AnalyticsMessages.EventDescription("benchmark_event", properties, TOKEN, false));
+        }
+        final long deadline = System.currentTimeMillis() + PIPELINE_TIMEOUT_MILLIS;
+        while (uploadedRecords.get() < PIPELINE_EVENTS && System.currentTimeMillis() < deadline) {
+            messages.postToServer(new AnalyticsMessages.FlushDescription(TOKEN, false));
+            Thread.sleep(10);
+        }
+        final long nanos = System.nanoTime() - start;
+        messages.hardKill();
+
+        assertEquals(PIPELINE_EVENTS, uploadedRecords.get());
+        MPDbAdapterBenchmarkTest.report("in-memory pipeline, enqueue to acknowledged upload", PIPELINE_EVENTS, nanos);
+    }
+
+    private static JSONObject event(int index) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("event", "test_event");
+        event.put("index", index);
+        return event;
+    }
+
+    private MPConfig mConfig;
+
+    private static final int PIPELINE_EVENTS = 5000;
+    private static final long PIPELINE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final String TOKEN = "IN_MEMORY_TOKEN";
+}
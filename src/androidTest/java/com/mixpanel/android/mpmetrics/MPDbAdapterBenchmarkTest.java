@@ -0,0 +1,128 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Rough throughput numbers for the MPDbAdapter write and read paths. These run on a device,
+ * since MPDbAdapter needs the platform SQLite, and report their results to the log under
+ * the "MixpanelAPI.Benchmark" tag.
+ */
+public class MPDbAdapterBenchmarkTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        mAdapter = new MPDbAdapter(getContext(), "BenchmarkTestDB", TOKEN);
+        mAdapter.deleteDB();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.deleteDB();
+    }
+
+    public void testSingleInsertsVersusBatchInsert() throws JSONException {
+        final JSONObject event = sampleEvent();
+
+        final long singleStart = System.nanoTime();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            mAdapter.addJSON(event, TOKEN, MPDbAdapter.Table.EVENTS, false);
+        }
+        final long singleNanos = System.nanoTime() - singleStart;
+        mAdapter.deleteDB();
+
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            records.add(new MPDbAdapter.Record(event, TOKEN, MPDbAdapter.Table.EVENTS, false));
+        }
+        final long batchStart = System.nanoTime();
+        final int depth = mAdapter.addJSONBatch(records);
+        final long batchNanos = System.nanoTime() - batchStart;
+
+        assertEquals(RECORD_COUNT, depth);
+        report("addJSON", RECORD_COUNT, singleNanos);
+        report("addJSONBatch", RECORD_COUNT, batchNanos);
+    }
+
+    public void testDrainLargeTable() throws JSONException {
+        final JSONObject event = sampleEvent();
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < LARGE_TABLE_ROWS; i++) {
+            records.add(new MPDbAdapter.Record(event, TOKEN, MPDbAdapter.Table.EVENTS, i % 10 == 0));
+            if (records.size() == 1000) {
+                mAdapter.addJSONBatch(records);
+                records.clear();
+            }
+        }
+        mAdapter.addJSONBatch(records);
+
+        int batches = 0;
+        final long start = System.nanoTime();
+        while (batches < DRAINED_BATCHES) {
+            final String[] data = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, batches % 2 == 0);
+            assertNotNull(data);
+            mAdapter.cleanupEvents(data[0], MPDbAdapter.Table.EVENTS, TOKEN, batches % 2 == 0);
+            batches++;
+        }
+        final long nanos = System.nanoTime() - start;
+
+        report("read and delete batches from " + LARGE_TABLE_ROWS + " rows", batches, nanos);
+    }
+
+    public void testCompactEncodingSize() throws JSONException {
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < RECORD_COUNT; i++) {
+            final JSONObject event = sampleEvent();
+            event.getJSONObject("properties").put("index", i);
+            records.add(new MPDbAdapter.Record(event, TOKEN, MPDbAdapter.Table.EVENTS, false));
+        }
+
+        mAdapter.addJSONBatch(records);
+        final String[] plain = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        final long plainBytes = mAdapter.getDatabaseFile().length();
+        mAdapter.deleteDB();
+
+        mAdapter.setCompactEncoding(true);
+        mAdapter.addJSONBatch(records);
+        final String[] compact = mAdapter.generateDataString(MPDbAdapter.Table.EVENTS, TOKEN, true);
+        final long compactBytes = mAdapter.getDatabaseFile().length();
+
+        // Uploads must see exactly the JSON that would have been stored as text
+        assertEquals(plain[1], compact[1]);
+        assertTrue(compactBytes < plainBytes);
+        Log.i(LOGTAG, RECORD_COUNT + " events take " + plainBytes + " bytes as JSON text and " + compactBytes + " bytes compactly encoded");
+    }
+
+    /* package */ static JSONObject sampleEvent() throws JSONException {
+        final JSONObject properties = new JSONObject();
+        properties.put("token", TOKEN);
+        properties.put("distinct_id", "benchmark-distinct-id");
+        properties.put("mp_lib", "android");
+        properties.put("$os", "Android");
+        properties.put("$screen_width", 1080);
+        properties.put("$screen_height", 1920);
+        properties.put("$wifi", true);
+
+        final JSONObject event = new JSONObject();
+        event.put("event", "benchmark_event");
+        event.put("properties", properties);
+        return event;
+    }
+
+    /* package */ static void report(String label, int operations, long nanos) {
+        final double perSecond = operations / (nanos / 1e9);
+        Log.i(LOGTAG, label + ": " + operations + " operations in " + (nanos / 1000000) + " ms (" + (long) perSecond + "/s)");
+    }
+
+    private MPDbAdapter mAdapter;
+
+    private static final int RECORD_COUNT = 500;
+    private static final int LARGE_TABLE_ROWS = 50000;
+    private static final int DRAINED_BATCHES = 100;
+    private static final String TOKEN = "BENCHMARK_TOKEN";
+    private static final String LOGTAG = "MixpanelAPI.Benchmark";
+}
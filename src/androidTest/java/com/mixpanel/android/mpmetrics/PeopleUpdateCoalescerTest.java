@@ -0,0 +1,160 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Checks that coalesced people updates leave every profile the way the original updates would,
+ * by applying both to a model of how Mixpanel applies updates.
+ */
+public class PeopleUpdateCoalescerTest extends AndroidTestCase {
+
+    public void testIncrementsInALoopBecomeOneUpdate() throws JSONException {
+        final List<JSONObject> updates = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            updates.add(update("$add", "alice", new JSONObject().put("count", 1)));
+        }
+        updates.add(update("$add", "alice", new JSONObject().put("score", 0.5)));
+        updates.add(update("$add", "alice", new JSONObject().put("score", 0.25)));
+
+        final List<JSONObject> coalesced = PeopleUpdateCoalescer.coalesce(updates);
+        assertEquals(1, coalesced.size());
+        assertEquals(100, coalesced.get(0).getJSONObject("$add").getLong("count"));
+        assertEquals(0.75, coalesced.get(0).getJSONObject("$add").getDouble("score"));
+        assertEquals(apply(updates), apply(coalesced));
+    }
+
+    public void testLaterSetWinsAndEarlierSetOnceWins() throws JSONException {
+        final List<JSONObject> updates = new ArrayList<>();
+        updates.add(update("$set", "alice", new JSONObject().put("plan", "free").put("city", "Paris")));
+        updates.add(update("$set_once", "alice", new JSONObject().put("first seen", "monday")));
+        updates.add(update("$set", "alice", new JSONObject().put("plan", "paid")));
+        updates.add(update("$set_once", "alice", new JSONObject().put("first seen", "tuesday")));
+
+        final List<JSONObject> coalesced = PeopleUpdateCoalescer.coalesce(updates);
+        assertEquals(2, coalesced.size());
+        assertEquals("paid", coalesced.get(0).getJSONObject("$set").getString("plan"));
+        assertEquals("monday", coalesced.get(1).getJSONObject("$set_once").getString("first seen"));
+        assertEquals(apply(updates), apply(coalesced));
+    }
+
+    public void testUpdatesAreNotMovedPastConflictingOnes() throws JSONException {
+        final List<JSONObject> updates = new ArrayList<>();
+        updates.add(update("$set", "alice", new JSONObject().put("count", 10)));
+        updates.add(update("$add", "alice", new JSONObject().put("count", 1)));
+        updates.add(update("$set", "alice", new JSONObject().put("count", 5)));
+        updates.add(update("$unset", "alice", new JSONArray().put("count")));
+        updates.add(update("$add", "alice", new JSONObject().put("count", 2)));
+
+        final List<JSONObject> coalesced = PeopleUpdateCoalescer.coalesce(updates);
+        assertEquals(5, coalesced.size());
+        assertEquals(apply(updates), apply(coalesced));
+    }
+
+    public void testProfilesAndOtherFieldsAreKeptApart() throws JSONException {
+        final List<JSONObject> updates = new ArrayList<>();
+        updates.add(update("$add", "alice", new JSONObject().put("count", 1)));
+        updates.add(update("$add", "bob", new JSONObject().put("count", 1)));
+        updates.add(update("$add", "alice", new JSONObject().put("count", 1)));
+        updates.add(update("$add", "alice", new JSONObject().put("count", 1)).put("$ignore_time", true));
+
+        final List<JSONObject> coalesced = PeopleUpdateCoalescer.coalesce(updates);
+        assertEquals(3, coalesced.size());
+        assertEquals(2, coalesced.get(0).getJSONObject("$add").getLong("count"));
+        assertEquals("bob", coalesced.get(1).getString("$distinct_id"));
+    }
+
+    public void testRandomUpdatesKeepTheSameProfiles() throws JSONException {
+        final String[] operations = { "$set", "$set_once", "$add", "$unset", "$append" };
+        final String[] properties = { "a", "b", "c" };
+        final String[] profiles = { "alice", "bob" };
+        final Random random = new Random(42);
+
+        for (int round = 0; round < 200; round++) {
+            final List<JSONObject> updates = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                final String operation = operations[random.nextInt(operations.length)];
+                final String property = properties[random.nextInt(properties.length)];
+                final String profile = profiles[random.nextInt(profiles.length)];
+                if ("$unset".equals(operation)) {
+                    updates.add(update(operation, profile, new JSONArray().put(property)));
+                } else {
+                    updates.add(update(operation, profile, new JSONObject().put(property, random.nextInt(5))));
+                }
+            }
+            assertEquals(apply(updates), apply(PeopleUpdateCoalescer.coalesce(updates)));
+        }
+    }
+
+    private static JSONObject update(String operation, String distinctId, Object values) throws JSONException {
+        final JSONObject update = new JSONObject();
+        update.put(operation, values);
+        update.put("$token", "TOKEN");
+        update.put("$distinct_id", distinctId);
+        update.put("$time", sTime++);
+        return update;
+    }
+
+    // Applies updates in order the way Mixpanel does, and returns each profile's properties as text
+    private static Map<String, String> apply(List<JSONObject> updates) throws JSONException {
+        final Map<String, Map<String, Object>> profiles = new HashMap<>();
+        for (final JSONObject update : updates) {
+            final String distinctId = update.getString("$distinct_id");
+            Map<String, Object> profile = profiles.get(distinctId);
+            if (null == profile) {
+                profile = new HashMap<>();
+                profiles.put(distinctId, profile);
+            }
+            final String operation = PeopleUpdateCoalescer.getOperation(update);
+            if ("$unset".equals(operation)) {
+                final JSONArray names = update.getJSONArray(operation);
+                for (int i = 0; i < names.length(); i++) {
+                    profile.remove(names.getString(i));
+                }
+                continue;
+            }
+            final JSONObject values = update.getJSONObject(operation);
+            final Iterator<String> keys = values.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object value = values.get(key);
+                final Object current = profile.get(key);
+                if ("$set".equals(operation)) {
+                    profile.put(key, value);
+                } else if ("$set_once".equals(operation)) {
+                    if (null == current) {
+                        profile.put(key, value);
+                    }
+                } else if ("$add".equals(operation)) {
+                    final double base = current instanceof Number ? ((Number) current).doubleValue() : 0;
+                    profile.put(key, base + ((Number) value).doubleValue());
+                } else if ("$append".equals(operation)) {
+                    profile.put(key, (current instanceof String ? current : "") + "," + value);
+                }
+            }
+        }
+
+        final Map<String, String> state = new HashMap<>();
+        for (final Map.Entry<String, Map<String, Object>> profile : profiles.entrySet()) {
+            final Map<String, String> properties = new TreeMap<>();
+            for (final Map.Entry<String, Object> property : profile.getValue().entrySet()) {
+                final Object value = property.getValue();
+                // Compare numbers by value, since merged amounts may change between integers and doubles
+                properties.put(property.getKey(), value instanceof Number ? String.valueOf(((Number) value).doubleValue()) : String.valueOf(value));
+            }
+            state.put(profile.getKey(), properties.toString());
+        }
+        return state;
+    }
+
+    private static long sTime = 1000000;
+}
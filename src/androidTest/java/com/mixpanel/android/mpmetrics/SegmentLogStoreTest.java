@@ -0,0 +1,214 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.test.AndroidTestCase;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+public class SegmentLogStoreTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = new File(getContext().getCacheDir(), "SegmentLogStoreTest");
+        mConfig = MPConfig.getInstance(getContext(), TOKEN);
+        mStore = new SegmentLogStore(getContext(), mDirectory, TOKEN);
+        mStore.deleteDB();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mStore.deleteDB();
+    }
+
+    public void testReadsInOrderAndAcknowledges() throws JSONException {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i + 1, append(event(i), i % 3 == 0));
+        }
+
+        final EventStore.Batch all = peek(true, EventStore.NO_ID);
+        assertEquals(10, all.getCount());
+        assertEquals(9, (int) indexes(all).get(9));
+        assertEquals(10, all.getDepth());
+
+        final EventStore.Batch regular = peek(false, EventStore.NO_ID);
+        assertEquals(6, regular.getCount());
+        assertEquals(1, (int) indexes(regular).get(0));
+
+        // Reading after a batch that is still in flight skips it
+        assertNull(peek(false, regular.getLastId()));
+
+        mStore.ack(MPDbAdapter.Table.EVENTS, TOKEN, regular.getLastId(), false);
+        final EventStore.Batch automatic = peek(true, EventStore.NO_ID);
+        assertEquals(4, automatic.getCount());
+        assertEquals(4, automatic.getDepth());
+        assertNull(mStore.peekBatch(MPDbAdapter.Table.PEOPLE, TOKEN, true, EventStore.NO_ID));
+    }
+
+    public void testCursorSurvivesReopening() throws JSONException {
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add(new MPDbAdapter.Record(event(i), TOKEN, MPDbAdapter.Table.EVENTS, false));
+        }
+        mStore.append(records);
+        final EventStore.Batch first = peek(false, EventStore.NO_ID);
+        mStore.ack(MPDbAdapter.Table.EVENTS, TOKEN, first.getLastId(), false);
+        mStore.close();
+
+        mStore = new SegmentLogStore(getContext(), mDirectory, TOKEN);
+        final EventStore.Batch second = peek(false, EventStore.NO_ID);
+        assertEquals(first.getCount(), (int) indexes(second).get(0));
+        assertEquals(5000 - first.getCount(), second.getDepth());
+
+        // Ids keep increasing across reopens, so new records are read after the old ones
+        append(event(5000), false);
+        assertEquals(5000, lastIndexAfterDraining());
+    }
+
+    public void testDeletingRecordsKeepsOtherProjects() throws JSONException {
+        final List<MPDbAdapter.Record> records = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            records.add(new MPDbAdapter.Record(event(i), i % 2 == 0 ? TOKEN : OTHER_TOKEN, MPDbAdapter.Table.EVENTS, i == 0));
+        }
+        records.add(new MPDbAdapter.Record(event(4), TOKEN, MPDbAdapter.Table.PEOPLE, false));
+        mStore.append(records);
+
+        mStore.deleteRecords(TOKEN);
+        assertEquals(0, mStore.depth(MPDbAdapter.Table.EVENTS, TOKEN, true));
+        assertEquals(0, mStore.depth(MPDbAdapter.Table.PEOPLE, TOKEN, true));
+        assertFalse(new File(mDirectory, "events.1." + TOKEN).exists());
+        assertEquals(2, mStore.depth(MPDbAdapter.Table.EVENTS, OTHER_TOKEN, true));
+
+        // The store is still usable by both projects
+        assertEquals(1, append(event(5), false));
+        mStore.close();
+        mStore = new SegmentLogStore(getContext(), mDirectory, TOKEN);
+        assertEquals(2, mStore.depth(MPDbAdapter.Table.EVENTS, OTHER_TOKEN, true));
+        assertEquals(1, mStore.depth(MPDbAdapter.Table.EVENTS, TOKEN, true));
+    }
+
+    public void testTornRecordIsDropped() throws JSONException, IOException {
+        for (int i = 0; i < 3; i++) {
+            append(event(i), false);
+        }
+        mStore.close();
+
+        File segment = null;
+        for (final File file : new File(mDirectory, "events.0." + TOKEN).listFiles()) {
+            if (file.getName().endsWith(".log")) {
+                segment = file;
+            }
+        }
+        final RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            // Corrupt the payload of the last record, as if the process died while writing it
+            final int frameBytes = 24 + event(0).toString().length();
+            file.seek(2 * frameBytes + 30);
+            file.write('X');
+        } finally {
+            file.close();
+        }
+
+        mStore = new SegmentLogStore(getContext(), mDirectory, TOKEN);
+        assertEquals(2, peek(false, EventStore.NO_ID).getCount());
+
+        // New records are appended where the torn one was
+        append(event(3), false);
+        assertEquals(3, (int) indexes(peek(false, EventStore.NO_ID)).get(2));
+    }
+
+    public void testCleanupAutomaticEvents() throws JSONException {
+        append(event(0), true);
+        append(event(1), false);
+        mStore.cleanupAutomaticEvents(TOKEN);
+
+        final EventStore.Batch batch = peek(true, EventStore.NO_ID);
+        assertEquals(1, batch.getCount());
+        assertEquals(1, (int) indexes(batch).get(0));
+    }
+
+    /**
+     * Appends, then drains in batches, the same records through each store, and reports the
+     * results to the log under the "MixpanelAPI.Benchmark" tag.
+     */
+    public void testBenchmarkAgainstSqlite() throws JSONException {
+        final MPDbAdapter sqlite = new MPDbAdapter(getContext(), "SegmentLogBenchmarkDB", TOKEN);
+        sqlite.deleteDB();
+        try {
+            runBenchmark("sqlite", sqlite);
+            runBenchmark("segment log", mStore);
+            runBenchmark("in memory", new InMemoryEventStore(mConfig, BENCHMARK_RECORDS));
+        } finally {
+            sqlite.deleteDB();
+        }
+    }
+
+    private void runBenchmark(String label, EventStore store) throws JSONException {
+        final JSONObject event = MPDbAdapterBenchmarkTest.sampleEvent();
+
+        final List<MPDbAdapter.Record> records = new ArrayList<>(1);
+        records.add(new MPDbAdapter.Record(event, TOKEN, MPDbAdapter.Table.EVENTS, false));
+        final long appendStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_RECORDS; i++) {
+            store.append(records);
+        }
+        MPDbAdapterBenchmarkTest.report(label + " append", BENCHMARK_RECORDS, System.nanoTime() - appendStart);
+
+        int batches = 0;
+        final long drainStart = System.nanoTime();
+        EventStore.Batch batch = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, EventStore.NO_ID);
+        while (null != batch) {
+            store.ack(MPDbAdapter.Table.EVENTS, TOKEN, batch.getLastId(), true);
+            batches++;
+            batch = store.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, true, EventStore.NO_ID);
+        }
+        MPDbAdapterBenchmarkTest.report(label + " read and acknowledge batches", batches, System.nanoTime() - drainStart);
+    }
+
+    private int lastIndexAfterDraining() throws JSONException {
+        int lastIndex = -1;
+        EventStore.Batch batch = peek(false, EventStore.NO_ID);
+        while (null != batch) {
+            final List<Integer> indexes = indexes(batch);
+            lastIndex = indexes.get(indexes.size() - 1);
+            batch = peek(false, batch.getLastId());
+        }
+        return lastIndex;
+    }
+
+    private int append(JSONObject event, boolean isAutomatic) {
+        final List<MPDbAdapter.Record> records = new ArrayList<>(1);
+        records.add(new MPDbAdapter.Record(event, TOKEN, MPDbAdapter.Table.EVENTS, isAutomatic));
+        return mStore.append(records);
+    }
+
+    private EventStore.Batch peek(boolean includeAutomaticEvents, long afterId) {
+        return mStore.peekBatch(MPDbAdapter.Table.EVENTS, TOKEN, includeAutomaticEvents, afterId);
+    }
+
+    private static JSONObject event(int index) throws JSONException {
+        final JSONObject event = new JSONObject();
+        event.put("event", "test_event");
+        event.put("index", index);
+        return event;
+    }
+
+    private static List<Integer> indexes(EventStore.Batch batch) throws JSONException {
+        final List<Integer> indexes = new ArrayList<>();
+        for (final String record : batch.getData().split("\n")) {
+            indexes.add(new JSONObject(record).getInt("index"));
+        }
+        return indexes;
+    }
+
+    private File mDirectory;
+    private MPConfig mConfig;
+    private SegmentLogStore mStore;
+
+    private static final int BENCHMARK_RECORDS = 2000;
+    private static final String TOKEN = "SEGMENT_LOG_TOKEN";
+    private static final String OTHER_TOKEN = "OTHER_SEGMENT_LOG_TOKEN";
+}
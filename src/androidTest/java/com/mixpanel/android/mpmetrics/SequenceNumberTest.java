@@ -0,0 +1,206 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import java.util.Map;
+import java.util.Set;
+
+public class SequenceNumberTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final SharedPreferences preferences = getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        preferences.edit().remove(PREFERENCES_KEY).commit();
+        mPreferences = new CountingPreferences(preferences);
+        mCountingContext = new ContextWrapper(getContext()) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                assertEquals(PREFERENCES_NAME, name);
+                return mPreferences;
+            }
+        };
+    }
+
+    public void testWritesOncePerBlock() {
+        final SequenceNumber sequenceNumber = new SequenceNumber(mCountingContext, TOKEN);
+        assertEquals(0, mPreferences.getWrites());
+
+        final long count = 3 * SequenceNumber.BLOCK_SIZE;
+        for (long expected = 0; expected < count; expected++) {
+            assertEquals(expected, sequenceNumber.getSequenceNumberAndIncrement());
+            // The block is stored before its first number is handed out
+            assertEquals(expected / SequenceNumber.BLOCK_SIZE + 1, mPreferences.getWrites());
+            assertTrue(mPreferences.getLong(PREFERENCES_KEY, 0) > expected);
+        }
+        assertEquals(count, mPreferences.getLong(PREFERENCES_KEY, 0));
+    }
+
+    public void testIncreasesAcrossRestarts() {
+        SequenceNumber sequenceNumber = new SequenceNumber(mCountingContext, TOKEN);
+        final long used = SequenceNumber.BLOCK_SIZE + SequenceNumber.BLOCK_SIZE / 2;
+        for (long expected = 0; expected < used; expected++) {
+            assertEquals(expected, sequenceNumber.getSequenceNumberAndIncrement());
+        }
+        assertEquals(2, mPreferences.getWrites());
+
+        // A new instance continues after the reserved block, skipping the numbers the last one never used
+        sequenceNumber = new SequenceNumber(mCountingContext, TOKEN);
+        final long first = sequenceNumber.getSequenceNumberAndIncrement();
+        assertEquals(2 * SequenceNumber.BLOCK_SIZE, first);
+        assertEquals(3, mPreferences.getWrites());
+        for (long i = 1; i < SequenceNumber.BLOCK_SIZE; i++) {
+            assertEquals(first + i, sequenceNumber.getSequenceNumberAndIncrement());
+        }
+        assertEquals(3, mPreferences.getWrites());
+
+        // Restarting without tracking anything reserves nothing
+        new SequenceNumber(mCountingContext, TOKEN);
+        sequenceNumber = new SequenceNumber(mCountingContext, TOKEN);
+        assertEquals(3, mPreferences.getWrites());
+        assertEquals(3 * SequenceNumber.BLOCK_SIZE, sequenceNumber.getSequenceNumberAndIncrement());
+    }
+
+    // Counts the writes that go through to the real preferences
+    private static class CountingPreferences implements SharedPreferences {
+        public CountingPreferences(SharedPreferences preferences) {
+            mPreferences = preferences;
+        }
+
+        public synchronized int getWrites() {
+            return mWrites;
+        }
+
+        private synchronized void countWrite() {
+            mWrites++;
+        }
+
+        @Override
+        public Map<String, ?> getAll() {
+            return mPreferences.getAll();
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return mPreferences.getString(key, defValue);
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return mPreferences.getStringSet(key, defValues);
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return mPreferences.getInt(key, defValue);
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return mPreferences.getLong(key, defValue);
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return mPreferences.getFloat(key, defValue);
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return mPreferences.getBoolean(key, defValue);
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return mPreferences.contains(key);
+        }
+
+        @Override
+        public Editor edit() {
+            final Editor editor = mPreferences.edit();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    editor.putString(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    editor.putStringSet(key, values);
+                    return this;
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    editor.putInt(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    editor.putLong(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    editor.putFloat(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    editor.putBoolean(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    editor.remove(key);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    editor.clear();
+                    return this;
+                }
+
+                @Override
+                public boolean commit() {
+                    countWrite();
+                    return editor.commit();
+                }
+
+                @Override
+                public void apply() {
+                    countWrite();
+                    editor.apply();
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            mPreferences.registerOnSharedPreferenceChangeListener(listener);
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+            mPreferences.unregisterOnSharedPreferenceChangeListener(listener);
+        }
+
+        private final SharedPreferences mPreferences;
+        private int mWrites;
+    }
+
+    private CountingPreferences mPreferences;
+    private Context mCountingContext;
+
+    private static final String TOKEN = "SEQUENCE_NUMBER_TEST_TOKEN";
+    private static final String PREFERENCES_NAME = "SequenceNumber";
+    private static final String PREFERENCES_KEY = "seq_no_" + TOKEN;
+}
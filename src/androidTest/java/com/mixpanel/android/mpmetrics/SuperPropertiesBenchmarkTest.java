@@ -0,0 +1,112 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Contention numbers for merging super properties into events from several tracking threads
+ * at once, while another thread keeps registering super properties. Results are reported to
+ * the log under the "MixpanelAPI.Benchmark" tag.
+ */
+public class SuperPropertiesBenchmarkTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        final SharedPreferences prefs = getContext().getSharedPreferences(TEST_PREFERENCES, Context.MODE_PRIVATE);
+        prefs.edit().clear().commit();
+
+        final SharedPreferencesLoader loader = new SharedPreferencesLoader();
+        final Future<SharedPreferences> referrerLoader = loader.loadPreferences(getContext(), TEST_REFERRER_PREFERENCES, null);
+        final Future<SharedPreferences> storedLoader = loader.loadPreferences(getContext(), TEST_PREFERENCES, null);
+        final Future<SharedPreferences> timeEventsLoader = loader.loadPreferences(getContext(), TEST_TIME_EVENTS_PREFERENCES, null);
+        final Future<SharedPreferences> mixpanelLoader = loader.loadPreferences(getContext(), TEST_MIXPANEL_PREFERENCES, null);
+        mPersistentIdentity = new PersistentIdentity(referrerLoader, storedLoader, timeEventsLoader, mixpanelLoader);
+
+        final JSONObject superProperties = new JSONObject();
+        for (int i = 0; i < SUPER_PROPERTY_COUNT; i++) {
+            superProperties.put("super property " + i, "value " + i);
+        }
+        mPersistentIdentity.registerSuperProperties(superProperties);
+    }
+
+    public void testConcurrentTracking() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(TRACKING_THREADS);
+        final AtomicInteger incomplete = new AtomicInteger(0);
+
+        for (int t = 0; t < TRACKING_THREADS; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < EVENTS_PER_THREAD; i++) {
+                            final JSONObject properties = new JSONObject();
+                            mPersistentIdentity.addSuperPropertiesToObject(properties);
+                            if (properties.length() < SUPER_PROPERTY_COUNT) {
+                                incomplete.incrementAndGet();
+                            }
+                        }
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        final long begin = System.nanoTime();
+        start.countDown();
+        int registrations = 0;
+        while (done.getCount() > 0 && registrations < MAX_REGISTRATIONS) {
+            final JSONObject changed = new JSONObject();
+            changed.put("changing property", registrations);
+            mPersistentIdentity.registerSuperProperties(changed);
+            registrations++;
+        }
+        done.await();
+        final long nanos = System.nanoTime() - begin;
+
+        assertEquals(0, incomplete.get());
+        MPDbAdapterBenchmarkTest.report("addSuperPropertiesToObject from " + TRACKING_THREADS + " threads with "
+                + registrations + " concurrent registrations", TRACKING_THREADS * EVENTS_PER_THREAD, nanos);
+    }
+
+    public void testSnapshotsOutliveLaterRegistrations() throws JSONException {
+        final JSONObject before = mPersistentIdentity.getSuperPropertiesSnapshot();
+
+        // However many changes happen before the snapshot is used, it keeps its properties
+        for (int i = 0; i < 100; i++) {
+            final JSONObject changed = new JSONObject();
+            changed.put("super property 0", "changed " + i);
+            mPersistentIdentity.registerSuperProperties(changed);
+        }
+        assertNotSame(before, mPersistentIdentity.getSuperPropertiesSnapshot());
+
+        final JSONObject oldProperties = new JSONObject();
+        PersistentIdentity.addSuperPropertiesToObject(oldProperties, before);
+        assertEquals("value 0", oldProperties.getString("super property 0"));
+
+        final JSONObject newProperties = new JSONObject();
+        mPersistentIdentity.addSuperPropertiesToObject(newProperties);
+        assertEquals("changed 99", newProperties.getString("super property 0"));
+    }
+
+    private PersistentIdentity mPersistentIdentity;
+
+    private static final int TRACKING_THREADS = 8;
+    private static final int EVENTS_PER_THREAD = 20000;
+    private static final int SUPER_PROPERTY_COUNT = 20;
+    private static final int MAX_REGISTRATIONS = 1000;
+    private static final String TEST_PREFERENCES = "SUPER PROPERTIES BENCHMARK PREFS";
+    private static final String TEST_REFERRER_PREFERENCES = "SUPER PROPERTIES BENCHMARK REFERRER PREFS";
+    private static final String TEST_TIME_EVENTS_PREFERENCES = "SUPER PROPERTIES BENCHMARK TIME EVENTS PREFS";
+    private static final String TEST_MIXPANEL_PREFERENCES = "SUPER PROPERTIES BENCHMARK MIXPANEL PREFS";
+}
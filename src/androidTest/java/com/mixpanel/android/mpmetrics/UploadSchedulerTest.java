@@ -0,0 +1,270 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import com.mixpanel.android.util.OfflineMode;
+import com.mixpanel.android.util.RemoteResponse;
+import com.mixpanel.android.util.RemoteService;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Posts through an UploadScheduler to a stub RemoteService whose endpoints answer after a set
+ * delay, and checks when requests are hedged and how each outcome is reported.
+ */
+public class UploadSchedulerTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mService = new DelayingRemoteService();
+        mEvents = Collections.synchronizedList(new ArrayList<String>());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (null != mScheduler) {
+            mScheduler.shutdown();
+        }
+        super.tearDown();
+    }
+
+    public void testDoesNotHedgeWithoutEnoughLatencySamples() throws Exception {
+        mScheduler = scheduler(1, 50);
+        warmUp(9);
+        mService.setDelay(PRIMARY, 300);
+
+        assertEquals(PRIMARY, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(0, mService.getRequests(HEDGE));
+    }
+
+    public void testDoesNotHedgeWhenHedgingIsOff() throws Exception {
+        mScheduler = scheduler(1, 0);
+        warmUp(20);
+        mService.setDelay(PRIMARY, 300);
+
+        assertEquals(PRIMARY, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(0, mService.getRequests(HEDGE));
+    }
+
+    public void testHedgesOnlyRequestsSlowerThanThePercentile() throws Exception {
+        mScheduler = scheduler(1, 50);
+        warmUp(10);
+
+        // Faster than the median of the samples, so the hedge is never sent
+        mService.setDelay(PRIMARY, 0);
+        assertEquals(PRIMARY, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(0, mService.getRequests(HEDGE));
+
+        mService.setDelay(PRIMARY, 5000);
+        assertEquals(HEDGE, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(1, mService.getRequests(HEDGE));
+    }
+
+    public void testFirstResponseWinsAndTheLoserIsNotBlamed() throws Exception {
+        mScheduler = scheduler(1, 50);
+        warmUp(10);
+        mService.setDelay(PRIMARY, 5000);
+
+        final long start = System.currentTimeMillis();
+        final RemoteResponse response = mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener());
+        assertEquals(HEDGE, response.getResponseMessage());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+
+        // The slow primary request is cancelled, which is no failure of its endpoint
+        assertTrue(waitForEvent("abandoned " + PRIMARY));
+        assertTrue(mEvents.contains("response " + HEDGE));
+        assertFalse(mEvents.contains("failure " + PRIMARY));
+        assertFalse(mEvents.contains("response " + PRIMARY));
+    }
+
+    public void testFailedHedgeFallsBackToThePrimary() throws Exception {
+        mScheduler = scheduler(1, 50);
+        warmUp(10);
+        mService.setDelay(PRIMARY, 300);
+        mService.setFailing(HEDGE, true);
+
+        assertEquals(PRIMARY, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(1, mService.getRequests(HEDGE));
+        assertTrue(mEvents.contains("failure " + HEDGE));
+        assertTrue(mEvents.contains("response " + PRIMARY));
+    }
+
+    public void testEndpointWindowLimitsConcurrentRequests() throws Exception {
+        mScheduler = scheduler(2, 0);
+        mService.setDelay(PRIMARY, 100);
+
+        final List<Future<RemoteResponse>> uploads = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            uploads.add(mScheduler.submit(new Callable<RemoteResponse>() {
+                @Override
+                public RemoteResponse call() throws Exception {
+                    return mScheduler.post(PRIMARY, null, MESSAGE, new RecordingListener());
+                }
+            }));
+        }
+        // Posts from outside the upload threads share the endpoint's window too
+        mScheduler.post(PRIMARY, null, MESSAGE, new RecordingListener());
+        for (final Future<RemoteResponse> upload : uploads) {
+            assertEquals(PRIMARY, upload.get().getResponseMessage());
+        }
+
+        assertEquals(7, mService.getRequests(PRIMARY));
+        assertEquals(2, mService.getMaxConcurrentRequests(PRIMARY));
+    }
+
+    public void testDoesNotHedgeToAFullEndpoint() throws Exception {
+        mScheduler = scheduler(1, 50);
+        warmUp(10);
+
+        // Take the hedge endpoint's only slot
+        mService.setDelay(HEDGE, 1000);
+        final Future<RemoteResponse> busy = mScheduler.submit(new Callable<RemoteResponse>() {
+            @Override
+            public RemoteResponse call() throws Exception {
+                return mScheduler.post(HEDGE, null, MESSAGE, new RecordingListener());
+            }
+        });
+        while (mService.getRequests(HEDGE) == 0) {
+            Thread.sleep(10);
+        }
+
+        mService.setDelay(PRIMARY, 300);
+        assertEquals(PRIMARY, mScheduler.post(PRIMARY, HEDGE, MESSAGE, new RecordingListener()).getResponseMessage());
+        assertEquals(1, mService.getRequests(HEDGE));
+        assertEquals(HEDGE, busy.get().getResponseMessage());
+    }
+
+    private UploadScheduler scheduler(int window, int hedgePercentile) {
+        final Bundle metaData = new Bundle();
+        metaData.putInt("com.mixpanel.android.MPConfig.UploadWindow", window);
+        metaData.putInt("com.mixpanel.android.MPConfig.UploadHedgePercentile", hedgePercentile);
+        final MPConfig config = new MPConfig(metaData, getContext());
+        config.setRemoteService(mService);
+        return new UploadScheduler(config);
+    }
+
+    // Records latencies of WARM_UP_MILLIS for the primary endpoint
+    private void warmUp(int requests) throws Exception {
+        mService.setDelay(PRIMARY, WARM_UP_MILLIS);
+        for (int i = 0; i < requests; i++) {
+            mScheduler.post(PRIMARY, null, MESSAGE, new RecordingListener());
+        }
+        mEvents.clear();
+    }
+
+    private boolean waitForEvent(String event) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!mEvents.contains(event)) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private class RecordingListener implements UploadScheduler.RequestListener {
+        @Override
+        public void onResponse(String url, RemoteResponse response) {
+            mEvents.add("response " + url);
+        }
+
+        @Override
+        public void onFailure(String url, Exception failure) {
+            mEvents.add("failure " + url);
+        }
+
+        @Override
+        public void onAbandoned(String url) {
+            mEvents.add("abandoned " + url);
+        }
+    }
+
+    // Answers each endpoint after its delay, with the endpoint as the response message
+    private static class DelayingRemoteService implements RemoteService {
+        public synchronized void setDelay(String endpointUrl, long millis) {
+            mDelays.put(endpointUrl, millis);
+        }
+
+        public synchronized void setFailing(String endpointUrl, boolean failing) {
+            mFailing.put(endpointUrl, failing);
+        }
+
+        public synchronized int getRequests(String endpointUrl) {
+            final Integer requests = mRequests.get(endpointUrl);
+            return null == requests ? 0 : requests;
+        }
+
+        public synchronized int getMaxConcurrentRequests(String endpointUrl) {
+            final Integer max = mMaxConcurrent.get(endpointUrl);
+            return null == max ? 0 : max;
+        }
+
+        @Override
+        public boolean isOnline(Context context, OfflineMode offlineMode) {
+            return true;
+        }
+
+        @Override
+        public void checkIsMixpanelBlocked() {
+        }
+
+        @Override
+        public RemoteResponse performRequest(String endpointUrl, String postBody) throws ServiceUnavailableException, IOException {
+            final long delay;
+            final boolean failing;
+            synchronized (this) {
+                mRequests.put(endpointUrl, getRequests(endpointUrl) + 1);
+                final int concurrent = getConcurrent(endpointUrl) + 1;
+                mConcurrent.put(endpointUrl, concurrent);
+                mMaxConcurrent.put(endpointUrl, Math.max(concurrent, getMaxConcurrentRequests(endpointUrl)));
+                final Long setDelay = mDelays.get(endpointUrl);
+                delay = null == setDelay ? 0 : setDelay;
+                failing = Boolean.TRUE.equals(mFailing.get(endpointUrl));
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (final InterruptedException e) {
+                throw new InterruptedIOException("Request to " + endpointUrl + " cancelled");
+            } finally {
+                synchronized (this) {
+                    mConcurrent.put(endpointUrl, getConcurrent(endpointUrl) - 1);
+                }
+            }
+            if (failing) {
+                throw new IOException(endpointUrl + " is down");
+            }
+            return new RemoteResponse(200, endpointUrl, "1", postBody.length(), postBody.length());
+        }
+
+        private int getConcurrent(String endpointUrl) {
+            final Integer concurrent = mConcurrent.get(endpointUrl);
+            return null == concurrent ? 0 : concurrent;
+        }
+
+        private final Map<String, Long> mDelays = new HashMap<>();
+        private final Map<String, Boolean> mFailing = new HashMap<>();
+        private final Map<String, Integer> mRequests = new HashMap<>();
+        private final Map<String, Integer> mConcurrent = new HashMap<>();
+        private final Map<String, Integer> mMaxConcurrent = new HashMap<>();
+    }
+
+    private UploadScheduler mScheduler;
+    private DelayingRemoteService mService;
+    private List<String> mEvents;
+
+    private static final long WARM_UP_MILLIS = 20;
+    private static final long TIMEOUT_MILLIS = 10 * 1000;
+    private static final String PRIMARY = "PRIMARY ENDPOINT";
+    private static final String HEDGE = "HEDGE ENDPOINT";
+    private static final String MESSAGE = "[{\"event\":\"test_event\"}]";
+}
@@ -0,0 +1,113 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+import java.util.ArrayList;
+import java.util.List;
+
+public class CircuitBreakerTest extends AndroidTestCase {
+
+    public void testOpensHalfOpensAndCloses() throws InterruptedException {
+        final List<CircuitBreaker.State> transitions = new ArrayList<>();
+        final CircuitBreaker breaker = new CircuitBreaker("ENDPOINT", new CircuitBreaker.StateListener() {
+            @Override
+            public void onCircuitStateChanged(String endpoint, CircuitBreaker.State state, int consecutiveFailures, long retryDelayMillis) {
+                transitions.add(state);
+            }
+        }, SHORT_DELAY_MILLIS, SHORT_DELAY_MILLIS);
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onSuccess();
+        assertTrue(transitions.isEmpty());
+
+        breaker.onFailure(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertTrue(breaker.getRetryDelay() > 0);
+
+        // After the delay a single trial request goes through
+        Thread.sleep(SHORT_DELAY_MILLIS * 3);
+        assertEquals(0, breaker.getRetryDelay());
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        assertFalse(breaker.isClosed());
+
+        // A failed trial reopens the breaker
+        breaker.onFailure(0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+
+        // An abandoned trial doesn't count either way, the next request is a trial again
+        Thread.sleep(SHORT_DELAY_MILLIS * 3);
+        assertTrue(breaker.allowRequest());
+        breaker.onAbandoned();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        // A successful trial closes it
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.isClosed());
+        assertTrue(breaker.allowRequest());
+
+        final List<CircuitBreaker.State> expected = new ArrayList<>();
+        expected.add(CircuitBreaker.State.OPEN);
+        expected.add(CircuitBreaker.State.HALF_OPEN);
+        expected.add(CircuitBreaker.State.OPEN);
+        expected.add(CircuitBreaker.State.HALF_OPEN);
+        expected.add(CircuitBreaker.State.HALF_OPEN);
+        expected.add(CircuitBreaker.State.CLOSED);
+        assertEquals(expected, transitions);
+    }
+
+    public void testRetryAfterIsHonored() {
+        final CircuitBreaker breaker = new CircuitBreaker("ENDPOINT", null, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+        breaker.onFailure(MAX_DELAY_MILLIS * 2);
+        assertTrue(breaker.getRetryDelay() > MAX_DELAY_MILLIS);
+        assertTrue(breaker.getRetryDelay() <= MAX_DELAY_MILLIS * 2);
+    }
+
+    public void testJitteredDelaysStayInBounds() {
+        long shortest = Long.MAX_VALUE;
+        long longest = 0;
+        for (int i = 0; i < 200; i++) {
+            final CircuitBreaker breaker = new CircuitBreaker("ENDPOINT", null, BASE_DELAY_MILLIS, MAX_DELAY_MILLIS);
+
+            // The first delay is between the base and three times the base
+            breaker.onFailure(0);
+            final long first = breaker.getRetryDelay();
+            assertTrue(first <= BASE_DELAY_MILLIS * 3);
+            assertTrue(first >= BASE_DELAY_MILLIS - CLOCK_SLACK_MILLIS);
+
+            // Later delays grow, but never past the maximum or below the base
+            for (int failures = 0; failures < 10; failures++) {
+                breaker.onFailure(0);
+                final long delay = breaker.getRetryDelay();
+                assertTrue(delay <= MAX_DELAY_MILLIS);
+                assertTrue(delay >= BASE_DELAY_MILLIS - CLOCK_SLACK_MILLIS);
+                shortest = Math.min(shortest, delay);
+                longest = Math.max(longest, delay);
+            }
+
+            breaker.onSuccess();
+            assertEquals(0, breaker.getRetryDelay());
+        }
+        // Delays are spread out rather than all the same
+        assertTrue(longest - shortest > BASE_DELAY_MILLIS);
+    }
+
+    public void testOnlyServerErrorsAndThrottlingAreEndpointFailures() {
+        assertTrue(CircuitBreaker.isEndpointFailure(500));
+        assertTrue(CircuitBreaker.isEndpointFailure(503));
+        assertTrue(CircuitBreaker.isEndpointFailure(429));
+        assertFalse(CircuitBreaker.isEndpointFailure(200));
+        assertFalse(CircuitBreaker.isEndpointFailure(400));
+        assertFalse(CircuitBreaker.isEndpointFailure(413));
+    }
+
+    private static final long SHORT_DELAY_MILLIS = 20;
+    private static final long BASE_DELAY_MILLIS = 1000;
+    private static final long MAX_DELAY_MILLIS = 10000;
+    private static final long CLOCK_SLACK_MILLIS = 100;
+}
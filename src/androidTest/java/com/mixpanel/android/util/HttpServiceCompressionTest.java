@@ -0,0 +1,224 @@
+package com.mixpanel.android.util;
+
+import android.test.AndroidTestCase;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Posts through HttpService to a minimal HTTP server on the loopback interface, and checks what
+ * arrives on the wire and what HttpService reports about it.
+ */
+public class HttpServiceCompressionTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new LocalServer();
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testBodiesBelowTheThresholdAreNotCompressed() throws Exception {
+        final HttpService service = new HttpService(HttpService.COMPRESSION_GZIP, THRESHOLD);
+        final String body = repeated(THRESHOLD - 1);
+
+        final RemoteResponse response = service.performRequest(mServer.getUrl(), body);
+        assertEquals(200, response.getResponseCode());
+        assertNull(mServer.getHeader("Content-Encoding"));
+        assertEquals(body, new String(mServer.getBody(), "UTF-8"));
+        assertEquals(THRESHOLD - 1, response.getRequestBodyBytes());
+        assertEquals(THRESHOLD - 1, response.getSentBodyBytes());
+    }
+
+    public void testGzipCompressesBodiesFromTheThreshold() throws Exception {
+        final HttpService service = new HttpService(HttpService.COMPRESSION_GZIP, THRESHOLD);
+        final String body = repeated(THRESHOLD);
+
+        final RemoteResponse response = service.performRequest(mServer.getUrl(), body);
+        assertEquals(200, response.getResponseCode());
+        assertEquals("gzip", mServer.getHeader("Content-Encoding"));
+        final byte[] sent = mServer.getBody();
+        assertEquals(body, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(sent))), "UTF-8"));
+        assertEquals(THRESHOLD, response.getRequestBodyBytes());
+        assertEquals(sent.length, response.getSentBodyBytes());
+        assertTrue(response.getSentBodyBytes() < response.getRequestBodyBytes());
+    }
+
+    public void testDeflateCompressesBodiesFromTheThreshold() throws Exception {
+        final HttpService service = new HttpService(HttpService.COMPRESSION_DEFLATE, THRESHOLD);
+        final String body = repeated(4 * THRESHOLD);
+
+        final RemoteResponse response = service.performRequest(mServer.getUrl(), body);
+        assertEquals(200, response.getResponseCode());
+        assertEquals("deflate", mServer.getHeader("Content-Encoding"));
+        final byte[] sent = mServer.getBody();
+        assertEquals(body, new String(readAll(new InflaterInputStream(new ByteArrayInputStream(sent))), "UTF-8"));
+        assertEquals(4 * THRESHOLD, response.getRequestBodyBytes());
+        assertEquals(sent.length, response.getSentBodyBytes());
+        assertTrue(response.getSentBodyBytes() < response.getRequestBodyBytes());
+    }
+
+    public void testNothingIsCompressedWithoutAnEncoding() throws Exception {
+        final HttpService service = new HttpService(null, 0);
+        final String body = repeated(4 * THRESHOLD);
+
+        final RemoteResponse response = service.performRequest(mServer.getUrl(), body);
+        assertNull(mServer.getHeader("Content-Encoding"));
+        assertEquals(body, new String(mServer.getBody(), "UTF-8"));
+        assertEquals(4 * THRESHOLD, response.getRequestBodyBytes());
+        assertEquals(4 * THRESHOLD, response.getSentBodyBytes());
+    }
+
+    public void testSizesAreCountedInEncodedBytes() throws Exception {
+        final HttpService service = new HttpService(HttpService.COMPRESSION_GZIP, THRESHOLD);
+        // Two bytes per character in UTF-8, so this is over the threshold although it is fewer characters
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < THRESHOLD / 2 + 1; i++) {
+            builder.append('\u00E9');
+        }
+        final String body = builder.toString();
+
+        final RemoteResponse response = service.performRequest(mServer.getUrl(), body);
+        assertEquals("gzip", mServer.getHeader("Content-Encoding"));
+        assertEquals(body, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(mServer.getBody()))), "UTF-8"));
+        assertEquals(2 * (THRESHOLD / 2 + 1), response.getRequestBodyBytes());
+    }
+
+    private static String repeated(int length) {
+        final String event = "{\"event\":\"test_event\",\"properties\":{\"token\":\"TEST TOKEN\"}}\n";
+        final StringBuilder builder = new StringBuilder(length);
+        while (builder.length() < length) {
+            builder.append(event);
+        }
+        builder.setLength(length);
+        return builder.toString();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    // Answers every POST with 200 and keeps the headers and raw body of the last one
+    private static class LocalServer extends Thread {
+        public LocalServer() throws IOException {
+            mSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            setDaemon(true);
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + mSocket.getLocalPort() + "/track";
+        }
+
+        public synchronized String getHeader(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.US));
+        }
+
+        public synchronized byte[] getBody() {
+            return mBody;
+        }
+
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mSocket.isClosed()) {
+                try {
+                    final Socket connection = mSocket.accept();
+                    try {
+                        handle(connection);
+                    } finally {
+                        connection.close();
+                    }
+                } catch (final IOException e) {
+                    // Closed by tearDown(), or a request the test will fail on anyway
+                }
+            }
+        }
+
+        private void handle(Socket connection) throws IOException {
+            final InputStream in = new BufferedInputStream(connection.getInputStream());
+            final Map<String, String> headers = new HashMap<>();
+            readLine(in); // Request line
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                final int colon = line.indexOf(':');
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+                int chunkLength;
+                while ((chunkLength = Integer.parseInt(readLine(in).trim(), 16)) > 0) {
+                    copy(in, body, chunkLength);
+                    readLine(in);
+                }
+                readLine(in);
+            } else if (headers.containsKey("content-length")) {
+                copy(in, body, Integer.parseInt(headers.get("content-length")));
+            }
+            synchronized (this) {
+                mHeaders = headers;
+                mBody = body.toByteArray();
+            }
+
+            final OutputStream out = connection.getOutputStream();
+            out.write("HTTP/1.1 200 OK\r\nContent-Length: 1\r\nConnection: close\r\n\r\n1".getBytes("US-ASCII"));
+            out.flush();
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1 && c != '\n') {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+            }
+            return line.toString();
+        }
+
+        private static void copy(InputStream in, OutputStream out, int length) throws IOException {
+            for (int i = 0; i < length; i++) {
+                final int c = in.read();
+                if (c == -1) {
+                    throw new IOException("Body ended early");
+                }
+                out.write(c);
+            }
+        }
+
+        private final ServerSocket mSocket;
+        private Map<String, String> mHeaders = new HashMap<>();
+        private byte[] mBody;
+    }
+
+    private LocalServer mServer;
+
+    private static final int THRESHOLD = 1024;
+}
@@ -0,0 +1,62 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.support.annotation.Nullable;
+
+/**
+ * A {@link FlushPolicy} that saves radio wakeups on metered networks.
+ *
+ * On Wi-Fi it flushes like the default policy. Otherwise every flush may power up the cellular
+ * radio, which then stays up for several seconds, so it waits for larger batches and flushes
+ * less often, but it does flush right away while the radio is still up from the previous upload.
+ * Slow links get batches that are larger still. Scheduled flushes never wait much longer than
+ * the app's own flushes have been coming, so delivery latency stays about the same.
+ */
+public class AdaptiveFlushPolicy implements FlushPolicy {
+
+    public AdaptiveFlushPolicy(int bulkUploadLimit, long flushInterval) {
+        mBulkUploadLimit = bulkUploadLimit;
+        mFlushInterval = flushInterval;
+    }
+
+    @Override
+    public long getFlushDelay(int queueDepth, long millisSinceLastUpload, long averageFlushInterval,
+            long averageUploadLatency, @Nullable Boolean isWifiConnected) {
+        if (queueDepth <= 0) {
+            return -1;
+        }
+
+        if (Boolean.TRUE.equals(isWifiConnected)) {
+            return queueDepth >= mBulkUploadLimit ? 0 : mFlushInterval;
+        }
+
+        // Piggyback on the previous upload while the radio is still powered, as long as the batch is worth sending
+        final boolean radioAwake = millisSinceLastUpload >= 0 && millisSinceLastUpload < RADIO_TAIL_MILLIS;
+        if (radioAwake && queueDepth * RADIO_AWAKE_BATCH_DIVISOR >= mBulkUploadLimit) {
+            return 0;
+        }
+
+        int batchLimit = mBulkUploadLimit * METERED_BATCH_FACTOR;
+        if (averageUploadLatency > SLOW_UPLOAD_MILLIS) {
+            batchLimit *= 2;
+        }
+        if (queueDepth >= batchLimit) {
+            return 0;
+        }
+
+        if (mFlushInterval < 0) {
+            return -1;
+        }
+        final long delay = mFlushInterval * METERED_INTERVAL_FACTOR;
+        return Math.min(delay, Math.max(mFlushInterval, averageFlushInterval));
+    }
+
+    private final int mBulkUploadLimit;
+    private final long mFlushInterval;
+
+    // How long a cellular radio typically stays powered after the last transfer
+    private static final long RADIO_TAIL_MILLIS = 10 * 1000;
+    private static final int RADIO_AWAKE_BATCH_DIVISOR = 4;
+    private static final int METERED_BATCH_FACTOR = 4;
+    private static final int METERED_INTERVAL_FACTOR = 4;
+    private static final long SLOW_UPLOAD_MILLIS = 1000;
+}
@@ -8,20 +8,28 @@ import android.os.Message;
 import android.os.Process;
 import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import com.mixpanel.android.util.CircuitBreaker;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.RemoteResponse;
 import com.mixpanel.android.util.RemoteService;
 import java.io.IOException;
 import java.net.MalformedURLException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -43,8 +51,16 @@ class AnalyticsMessages {
     private static final int FLUSH_QUEUE = 2; // push given JSON message to events DB
     private static final int KILL_WORKER = 5; // Hard-kill the worker thread, discarding all events on the event queue. This is for testing, or disasters.
     private static final int INSTALL_DECIDE_CHECK = 12; // Run this DecideCheck at intervals until it isDestroyed()
+    private static final int CLOSE_DATABASE = 13; // Close the persistent database connection after the worker has been idle
+    private static final long DEFAULT_RETRY_DELAY = 60 * 1000;
+    private static final long MAX_RETRY_DELAY = 10 * 60 * 1000;
+    private static final int FLUSH_BATCHES_PER_TURN = 10; // Batches one project may upload before the others get a turn
+    private static final int MAX_CACHED_EVENT_NAMES = 500; // Most apps track far fewer distinct event names
     @NonNull private static final String LOGTAG = "MixpanelAPI.Messages";
-    @NonNull private static final Map<Context, AnalyticsMessages> sInstances = new HashMap<>();
+    @NonNull private static final Map<String, AnalyticsMessages> sInstances = new HashMap<>();
+    // Every AnalyticsMessages instance runs its handler on this one thread, whatever its token
+    private static HandlerThread sWorkerThread;
+    private static final EventNameCache sEventNameCache = new EventNameCache(MAX_CACHED_EVENT_NAMES);
     @NonNull protected final Context mContext;
     /////////////////////////////////////////////////////////
     // For testing, to allow for Mocking.
@@ -74,13 +90,32 @@ class AnalyticsMessages {
 
     /**
      * Use this to get an instance of AnalyticsMessages instead of creating one directly
-     * for yourself.
+     * for yourself. There is one instance per project token, and all of them share a single
+     * worker thread and database.
      *
      * @param messageContext should be the Main Activity of the application
      * associated with these messages.
      */
     public static AnalyticsMessages getInstance(final Context messageContext, final String token) {
-        return new AnalyticsMessages(messageContext, token);
+        synchronized (sInstances) {
+            AnalyticsMessages ret = sInstances.get(token);
+            if (ret == null || ret.isDead()) {
+                ret = new AnalyticsMessages(messageContext.getApplicationContext(), token);
+                sInstances.put(token, ret);
+            }
+            return ret;
+        }
+    }
+
+    // NOTE that the returned looper will run FOREVER, its thread is shared by every project
+    private static Looper getWorkerLooper() {
+        synchronized (sInstances) {
+            if (sWorkerThread == null || !sWorkerThread.isAlive()) {
+                sWorkerThread = new HandlerThread("com.mixpanel.android.AnalyticsWorker", Process.THREAD_PRIORITY_BACKGROUND);
+                sWorkerThread.start();
+            }
+            return sWorkerThread.getLooper();
+        }
     }
 
     protected Worker createWorker() {
@@ -88,19 +123,12 @@ class AnalyticsMessages {
     }
 
     public void eventsMessage(final EventDescription eventDescription) {
-        final Message m = Message.obtain();
-        m.what = ENQUEUE_EVENTS;
-        m.obj = eventDescription;
-        mWorker.runMessage(m);
+        mWorker.runEnqueueMessage(ENQUEUE_EVENTS, eventDescription);
     }
 
     // Must be thread safe.
     public void peopleMessage(final PeopleDescription peopleDescription) {
-        final Message m = Message.obtain();
-        m.what = ENQUEUE_PEOPLE;
-        m.obj = peopleDescription;
-
-        mWorker.runMessage(m);
+        mWorker.runEnqueueMessage(ENQUEUE_PEOPLE, peopleDescription);
     }
 
     public void postToServer(final FlushDescription flushDescription) {
@@ -132,8 +160,8 @@ class AnalyticsMessages {
     }
     /////////////////////////////////////////////////////////
 
-    protected MPDbAdapter makeDbAdapter(Context context, final String token) {
-        return MPDbAdapter.getInstance(context, token);
+    protected EventStore makeDbAdapter(Context context, final String token) {
+        return EventStores.getWorkerInstance(context, mConfig, token);
     }
 
     protected MPConfig getConfig(Context context, final String token) {
@@ -154,26 +182,95 @@ class AnalyticsMessages {
         return ((Worker.AnalyticsMessageHandler) mWorker.mHandler).getTrackEngageRetryAfter();
     }
 
+    /**
+     * Builds the properties of an event on the worker thread, for events whose construction
+     * was deferred out of MixpanelAPI.track.
+     */
+    interface EventPropertiesBuilder {
+        JSONObject buildProperties() throws JSONException;
+
+        // Adds the properties buildProperties() would add to an EventBuilder, under its own
+        void addDefaults(EventBuilder eventBuilder);
+    }
+
     static class EventDescription extends MixpanelDescription {
         private final String mEventName;
         private final JSONObject mProperties;
+        private final EventPropertiesBuilder mPropertiesBuilder;
+        private final EventBuilder mEventBuilder;
+        private final long mTimestamp;
         private final boolean mIsAutomatic;
 
         public EventDescription(String eventName, JSONObject properties, String token, boolean isAutomatic) {
             super(token);
             mEventName = eventName;
             mProperties = properties;
+            mPropertiesBuilder = null;
+            mEventBuilder = null;
+            mTimestamp = -1;
+            mIsAutomatic = isAutomatic;
+        }
+
+        /**
+         * An event whose properties will be built by propertiesBuilder on the worker thread.
+         *
+         * @param timestamp the time the event was tracked, in milliseconds since the epoch
+         */
+        public EventDescription(String eventName, EventPropertiesBuilder propertiesBuilder, long timestamp, String token, boolean isAutomatic) {
+            super(token);
+            mEventName = eventName;
+            mProperties = null;
+            mPropertiesBuilder = propertiesBuilder;
+            mEventBuilder = null;
+            mTimestamp = timestamp;
             mIsAutomatic = isAutomatic;
         }
 
+        /**
+         * An event tracked with an EventBuilder, which is written straight to its stored form on
+         * the worker thread and then recycled.
+         */
+        public EventDescription(EventBuilder eventBuilder, EventPropertiesBuilder propertiesBuilder, long timestamp, String token) {
+            super(token);
+            mEventName = eventBuilder.getEventName();
+            mProperties = null;
+            mPropertiesBuilder = propertiesBuilder;
+            mEventBuilder = eventBuilder;
+            mTimestamp = timestamp;
+            mIsAutomatic = false;
+        }
+
         public String getEventName() {
             return mEventName;
         }
 
+        // Null for deferred events, use buildProperties() on the worker thread instead
         public JSONObject getProperties() {
             return mProperties;
         }
 
+        public JSONObject buildProperties() throws JSONException {
+            if (null == mPropertiesBuilder) {
+                return mProperties;
+            }
+            return mPropertiesBuilder.buildProperties();
+        }
+
+        // Non-null for events tracked with an EventBuilder
+        public EventBuilder getEventBuilder() {
+            return mEventBuilder;
+        }
+
+        // Adds the properties track() would add to the EventBuilder, under the caller's own
+        public void addDefaults() {
+            mPropertiesBuilder.addDefaults(mEventBuilder);
+        }
+
+        // The time the event was tracked, or -1 if it should be stamped when it is queued
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
         public boolean isAutomatic() {
             return mIsAutomatic;
         }
@@ -226,6 +323,14 @@ class AnalyticsMessages {
         }
     }
 
+    // Body sizes for every batch posted during one flush, before and after compression
+    private static class FlushStats {
+        int postedBatches;
+        long requestBytes;
+        long sentBytes;
+        boolean failed; // A batch wasn't accepted and a retry is scheduled
+    }
+
     // Worker will manage the (at most single) IO thread associated with
     // this AnalyticsMessages instance.
     // XXX: Worker class is unnecessary, should be just a subclass of HandlerThread
@@ -237,6 +342,11 @@ class AnalyticsMessages {
         private long mLastFlushTime = -1;
         private SystemInformation mSystemInformation;
 
+        // Events and people records waiting for the worker thread. Enqueue messages only wake
+        // the worker up, which then drains everything pending here into a single batch write.
+        private final Queue<MixpanelDescription> mPendingRecords = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean mDrainScheduled = new AtomicBoolean(false);
+
         public Worker() {
             mHandler = restartWorkerThread();
         }
@@ -258,12 +368,28 @@ class AnalyticsMessages {
             }
         }
 
-        // NOTE that the returned worker will run FOREVER, unless you send a hard kill
-        // (which you really shouldn't)
+        public void runEnqueueMessage(int what, MixpanelDescription description) {
+            synchronized (mHandlerLock) {
+                if (mHandler == null) {
+                    // We died under suspicious circumstances. Don't try to send any more events.
+                    logAboutMessageToMixpanel("Dead mixpanel worker dropping a message: " + what);
+                    return;
+                }
+
+                mPendingRecords.add(description);
+                // At most one drain message is in flight, it will pick up everything queued so far.
+                if (mDrainScheduled.compareAndSet(false, true)) {
+                    final Message m = Message.obtain();
+                    m.what = what;
+                    mHandler.sendMessage(m);
+                }
+            }
+        }
+
+        // The handler serves this project until it gets a hard kill (which you really shouldn't send),
+        // on the worker thread shared by every project
         protected Handler restartWorkerThread() {
-            final HandlerThread thread = new HandlerThread("com.mixpanel.android.AnalyticsWorker", Process.THREAD_PRIORITY_BACKGROUND);
-            thread.start();
-            return new AnalyticsMessageHandler(thread.getLooper());
+            return new AnalyticsMessageHandler(getWorkerLooper());
         }
 
         private void updateFlushFrequency() {
@@ -286,10 +412,40 @@ class AnalyticsMessages {
         class AnalyticsMessageHandler extends Handler {
             private final DecideChecker mDecideChecker;
             private final long mFlushInterval;
-            private MPDbAdapter mDbAdapter;
+            private final long mDatabaseIdleTimeout;
+            private EventStore mDbAdapter;
             private long mDecideRetryAfter;
             private long mTrackEngageRetryAfter;
             private int mFailedRetries;
+            private final Random mRetryJitter = new Random();
+            private UploadScheduler mUploadScheduler;
+            private final Map<String, CircuitBreaker> mCircuitBreakers = new HashMap<>();
+            private final UploadScheduler.RequestListener mBreakerUpdater = new UploadScheduler.RequestListener() {
+                @Override
+                public void onResponse(String url, RemoteResponse response) {
+                    // A rejected batch is retried, but doesn't back off an endpoint that answered
+                    if (CircuitBreaker.isEndpointFailure(response.getResponseCode())) {
+                        getCircuitBreaker(url).onFailure(0);
+                    } else {
+                        getCircuitBreaker(url).onSuccess();
+                    }
+                }
+
+                @Override
+                public void onFailure(String url, Exception failure) {
+                    long retryAfterMillis = 0;
+                    if (failure instanceof RemoteService.ServiceUnavailableException) {
+                        retryAfterMillis = ((RemoteService.ServiceUnavailableException) failure).getRetryAfter() * 1000L;
+                    }
+                    getCircuitBreaker(url).onFailure(retryAfterMillis);
+                }
+
+                @Override
+                public void onAbandoned(String url) {
+                    getCircuitBreaker(url).onAbandoned();
+                }
+            };
+            private final StringBuilder mEventStringBuilder = new StringBuilder();
 
             public AnalyticsMessageHandler(Looper looper) {
                 super(looper);
@@ -297,6 +453,7 @@ class AnalyticsMessages {
                 mSystemInformation = SystemInformation.getInstance(mContext);
                 mDecideChecker = createDecideChecker();
                 mFlushInterval = mConfig.getFlushInterval();
+                mDatabaseIdleTimeout = mConfig.getDatabaseIdleTimeout();
             }
 
             protected DecideChecker createDecideChecker() {
@@ -307,36 +464,20 @@ class AnalyticsMessages {
             public void handleMessage(Message msg) {
                 if (mDbAdapter == null) {
                     mDbAdapter = makeDbAdapter(mContext, mToken);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.EVENTS);
-                    mDbAdapter.cleanupEvents(System.currentTimeMillis() - mConfig.getDataExpiration(), MPDbAdapter.Table.PEOPLE);
+                    mDbAdapter.expire(MPDbAdapter.Table.EVENTS, System.currentTimeMillis() - mConfig.getDataExpiration());
+                    mDbAdapter.expire(MPDbAdapter.Table.PEOPLE, System.currentTimeMillis() - mConfig.getDataExpiration());
                 }
 
                 try {
                     int returnCode = MPDbAdapter.DB_UNDEFINED_CODE;
                     String token = null;
 
-                    if (msg.what == ENQUEUE_PEOPLE) {
-                        final PeopleDescription message = (PeopleDescription) msg.obj;
-
-                        logAboutMessageToMixpanel("Queuing people record for sending later");
-                        logAboutMessageToMixpanel("    " + message.toString());
-                        token = message.getToken();
-                        returnCode = mDbAdapter.addJSON(message.getMessage(), token, MPDbAdapter.Table.PEOPLE, false);
-                    } else if (msg.what == ENQUEUE_EVENTS) {
-                        final EventDescription eventDescription = (EventDescription) msg.obj;
-                        try {
-                            final JSONObject message = prepareEventObject(eventDescription);
-                            logAboutMessageToMixpanel("Queuing event for sending later");
-                            logAboutMessageToMixpanel("    " + message.toString());
-                            token = eventDescription.getToken();
-
-                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
-                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
-                                return;
-                            }
-                            returnCode = mDbAdapter.addJSON(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic());
-                        } catch (final JSONException e) {
-                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                    if (msg.what == ENQUEUE_PEOPLE || msg.what == ENQUEUE_EVENTS) {
+                        final List<MPDbAdapter.Record> records = drainPendingRecords();
+                        if (!records.isEmpty()) {
+                            logAboutMessageToMixpanel("Writing a batch of " + records.size() + " records");
+                            token = records.get(records.size() - 1).getToken();
+                            returnCode = mDbAdapter.append(records);
                         }
                     } else if (msg.what == FLUSH_QUEUE) {
                         logAboutMessageToMixpanel("Flushing queue due to scheduled or forced flush");
@@ -362,22 +503,45 @@ class AnalyticsMessages {
                                 mDecideRetryAfter = SystemClock.elapsedRealtime() + e.getRetryAfter() * 1000;
                             }
                         }
+                    } else if (msg.what == CLOSE_DATABASE) {
+                        logAboutMessageToMixpanel("Closing idle database connection");
+                        mDbAdapter.close();
                     } else if (msg.what == KILL_WORKER) {
                         MPLog.w(LOGTAG, "Worker received a hard kill. Dumping all events and force-killing. Thread id " + Thread.currentThread().getId());
                         synchronized (mHandlerLock) {
-                            mDbAdapter.deleteDB();
-                            mHandler = null;
-                            final Looper looper = Looper.myLooper();
-                            if (looper != null) {
-                                looper.quit();
+                            mPendingRecords.clear();
+                            removeMessages(CLOSE_DATABASE);
+                            if (mUploadScheduler != null) {
+                                mUploadScheduler.shutdown();
+                                mUploadScheduler = null;
                             }
+                            // Other projects are still using the shared thread and store, so only this
+                            // project's records are dropped and only this handler stops
+                            mDbAdapter.deleteRecords(mToken);
+                            mHandler = null;
+                            removeCallbacksAndMessages(null);
                         }
                     } else {
                         MPLog.e(LOGTAG, "Unexpected message received by Mixpanel worker: " + msg);
                     }
 
+                    if (mDatabaseIdleTimeout > 0 && msg.what != CLOSE_DATABASE && msg.what != KILL_WORKER) {
+                        // Push the idle close back, the connection is only closed once no work arrives for a while.
+                        removeMessages(CLOSE_DATABASE);
+                        sendEmptyMessageDelayed(CLOSE_DATABASE, mDatabaseIdleTimeout);
+                    }
+
                     ///////////////////////////
-                    if ((returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR) && mFailedRetries <= 0 && token != null) {
+                    boolean flushNow = returnCode >= mConfig.getBulkUploadLimit() || returnCode == MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+                    long flushDelay = mFlushInterval;
+                    final FlushPolicy flushPolicy = mConfig.getFlushPolicy();
+                    if (flushPolicy != null && returnCode > 0) {
+                        final long policyDelay = getPolicyFlushDelay(flushPolicy, returnCode);
+                        flushNow = policyDelay == 0;
+                        flushDelay = flushNow ? mFlushInterval : policyDelay;
+                    }
+
+                    if (flushNow && mFailedRetries <= 0 && token != null) {
                         logAboutMessageToMixpanel("Flushing queue due to bulk upload limit (" + returnCode + ") for project " + token);
                         updateFlushFrequency();
                         sendAllData(mDbAdapter, token);
@@ -395,37 +559,114 @@ class AnalyticsMessages {
                         // a flush right here, so we may end up with two flushes
                         // in our queue, but we're OK with that.
 
-                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + mFlushInterval);
-                        if (mFlushInterval >= 0) {
+                        logAboutMessageToMixpanel("Queue depth " + returnCode + " - Adding flush in " + flushDelay);
+                        if (flushDelay >= 0) {
                             final Message flushMessage = Message.obtain();
                             flushMessage.what = FLUSH_QUEUE;
                             flushMessage.obj = token;
                             flushMessage.arg1 = 1;
-                            sendMessageDelayed(flushMessage, mFlushInterval);
+                            sendMessageDelayed(flushMessage, flushDelay);
                         }
                     }
                 } catch (final RuntimeException e) {
                     MPLog.e(LOGTAG, "Worker threw an unhandled exception", e);
                     synchronized (mHandlerLock) {
                         mHandler = null;
+                        mPendingRecords.clear();
+                        removeCallbacksAndMessages(null);
+                        MPLog.e(LOGTAG, "Mixpanel will not process any more analytics messages for " + mToken, e);
+                    }
+                }
+            }// handleMessage
+
+            // Takes every record queued since the last drain, in the order they were tracked. People updates
+            // of the same profile are merged where Mixpanel would end up with the same profile, so a counter
+            // incremented in a loop is stored as one update.
+            private List<MPDbAdapter.Record> drainPendingRecords() {
+                // Clear the flag before polling, so a record added while we drain schedules a new pass.
+                mDrainScheduled.set(false);
+
+                final List<MPDbAdapter.Record> records = new ArrayList<>();
+                Map<String, List<JSONObject>> peopleUpdates = null; // By token, in the order they were made
+                MixpanelDescription description;
+                while ((description = mPendingRecords.poll()) != null) {
+                    if (description instanceof PeopleDescription) {
+                        final PeopleDescription message = (PeopleDescription) description;
+
+                        logAboutMessageToMixpanel("Queuing people record for sending later");
+                        logAboutMessageToMixpanel("    " + message.toString());
+                        if (peopleUpdates == null) {
+                            peopleUpdates = new LinkedHashMap<>();
+                        }
+                        List<JSONObject> tokenUpdates = peopleUpdates.get(message.getToken());
+                        if (tokenUpdates == null) {
+                            tokenUpdates = new ArrayList<>();
+                            peopleUpdates.put(message.getToken(), tokenUpdates);
+                        }
+                        tokenUpdates.add(message.getMessage());
+                    } else if (description instanceof EventDescription) {
+                        final EventDescription eventDescription = (EventDescription) description;
+                        if (eventDescription.getEventBuilder() != null) {
+                            try {
+                                final String message = prepareEventString(eventDescription);
+                                logAboutMessageToMixpanel("Queuing event for sending later");
+                                logAboutMessageToMixpanel("    " + message);
+                                records.add(new MPDbAdapter.Record(message, eventDescription.getToken(), MPDbAdapter.Table.EVENTS, false));
+                            } catch (final JSONException e) {
+                                MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
+                            }
+                            continue;
+                        }
                         try {
-                            final Looper looper = Looper.myLooper();
-                            if (looper != null) {
-                                looper.quit();
+                            final JSONObject message = prepareEventObject(eventDescription);
+                            logAboutMessageToMixpanel("Queuing event for sending later");
+                            logAboutMessageToMixpanel("    " + message.toString());
+                            final String token = eventDescription.getToken();
+
+                            DecideMessages decide = mDecideChecker.getDecideMessages(token);
+                            if (decide != null && eventDescription.isAutomatic() && !decide.shouldTrackAutomaticEvent()) {
+                                continue;
                             }
-                            MPLog.e(LOGTAG, "Mixpanel will not process any more analytics messages", e);
-                        } catch (final Exception tooLate) {
-                            MPLog.e(LOGTAG, "Could not halt looper", tooLate);
+                            records.add(new MPDbAdapter.Record(message, token, MPDbAdapter.Table.EVENTS, eventDescription.isAutomatic()));
+                        } catch (final JSONException e) {
+                            MPLog.e(LOGTAG, "Exception tracking event " + eventDescription.getEventName(), e);
                         }
                     }
                 }
-            }// handleMessage
+
+                if (peopleUpdates != null) {
+                    for (final Map.Entry<String, List<JSONObject>> tokenUpdates : peopleUpdates.entrySet()) {
+                        final List<JSONObject> coalesced = PeopleUpdateCoalescer.coalesce(tokenUpdates.getValue());
+                        if (coalesced.size() < tokenUpdates.getValue().size()) {
+                            logAboutMessageToMixpanel("Merged " + tokenUpdates.getValue().size() + " people updates into " + coalesced.size());
+                        }
+                        for (final JSONObject update : coalesced) {
+                            records.add(new MPDbAdapter.Record(update, tokenUpdates.getKey(), MPDbAdapter.Table.PEOPLE, false));
+                        }
+                    }
+                }
+                return records;
+            }
+
+            private long getPolicyFlushDelay(FlushPolicy flushPolicy, int queueDepth) {
+                long millisSinceLastUpload = -1;
+                long averageUploadLatency = 0;
+                if (mUploadScheduler != null) {
+                    final long lastUpload = mUploadScheduler.getLastRequestFinished();
+                    if (lastUpload >= 0) {
+                        millisSinceLastUpload = SystemClock.elapsedRealtime() - lastUpload;
+                    }
+                    averageUploadLatency = mUploadScheduler.getAverageLatency();
+                }
+                return flushPolicy.getFlushDelay(queueDepth, millisSinceLastUpload, mAveFlushFrequency,
+                        averageUploadLatency, mSystemInformation.isWifiConnected());
+            }
 
             protected long getTrackEngageRetryAfter() {
                 return mTrackEngageRetryAfter;
             }
 
-            private void sendAllData(MPDbAdapter dbAdapter, String token) {
+            private void sendAllData(EventStore dbAdapter, String token) {
                 final RemoteService poster = mConfig.getRemoteService();
                 if (!poster.isOnline(mContext, mConfig.getOfflineMode())) {
                     logAboutMessageToMixpanel("Not flushing data to Mixpanel because the device is not connected to the internet.");
@@ -441,105 +682,256 @@ class AnalyticsMessages {
                 if (eventsFallbackEndpoints != null) {
                     endpoints.addAll(eventsFallbackEndpoints);
                 }
-                sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, endpoints);
+                if (!sendData(dbAdapter, token, MPDbAdapter.Table.EVENTS, endpoints)) {
+                    return; // People updates go out with the scheduled retry
+                }
+
+                final String peopleEndpoint = mConfig.getPeopleEndpoint();
+                if (peopleEndpoint != null) {
+                    sendData(dbAdapter, token, MPDbAdapter.Table.PEOPLE, Collections.singletonList(peopleEndpoint));
+                }
             }
 
-            private void sendData(final MPDbAdapter dbAdapter, final String token,
+            // Returns false if a batch wasn't accepted, in which case a retry of the whole flush is scheduled
+            private boolean sendData(final EventStore dbAdapter, final String token,
                     final MPDbAdapter.Table table, final List<String> urls) {
                 DecideMessages decideMessages = mDecideChecker.getDecideMessages(token);
                 boolean includeAutomaticEvents = true;
                 if (decideMessages == null || decideMessages.isAutomaticEventsEnabled() == null) {
                     includeAutomaticEvents = false;
                 }
-                String[] eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                Integer queueCount = 0;
-                if (eventsData != null) {
-                    queueCount = Integer.valueOf(eventsData[2]);
+                final FlushStats stats = new FlushStats();
+                boolean yielded = false;
+                if (mConfig.getFlushPrefetchDepth() > 0 || mConfig.getUploadWindow() > 1) {
+                    yielded = sendDataPipelined(dbAdapter, token, table, urls, includeAutomaticEvents, stats);
+                } else {
+                    EventStore.Batch batch = dbAdapter.peekBatch(table, token, includeAutomaticEvents, EventStore.NO_ID);
+
+                    int batchesSent = 0;
+                    while (batch != null && batch.getDepth() > 0) {
+                        if (batchesSent == FLUSH_BATCHES_PER_TURN) {
+                            yielded = true;
+                            break;
+                        }
+                        final RemoteResponse response = postBatch(urls, batch.getData());
+                        if (!acknowledgeBatch(response, urls, batch.getLastId(), dbAdapter, token, table, includeAutomaticEvents, stats)) {
+                            break;
+                        }
+                        batchesSent++;
+
+                        batch = dbAdapter.peekBatch(table, token, includeAutomaticEvents, EventStore.NO_ID);
+                    }
+                }
+
+                if (stats.postedBatches > 0) {
+                    logAboutMessageToMixpanel("Posted " + stats.postedBatches + " batches from " + table.getName() + ": " +
+                            stats.requestBytes + " bytes of data, " + stats.sentBytes + " bytes sent");
+                }
+                if (yielded) {
+                    // Every project shares the worker thread, so a large backlog is drained a few batches
+                    // at a time, behind whatever the other projects have queued in the meantime.
+                    logAboutMessageToMixpanel("Flushed " + FLUSH_BATCHES_PER_TURN + " batches for " + token + ", continuing after other work");
+                    final Message flushMessage = Message.obtain();
+                    flushMessage.what = FLUSH_QUEUE;
+                    flushMessage.obj = token;
+                    flushMessage.arg1 = 0;
+                    sendMessage(flushMessage);
                 }
+                return !stats.failed;
+            }
 
-                while (eventsData != null && queueCount > 0) {
-                    final String lastId = eventsData[0];
-                    final String rawMessage = eventsData[1];
-                    boolean deleteEvents = false;
-                    for (final String url : urls) {
-                        try {
-                            final RemoteService poster = mConfig.getRemoteService();
-                            final RemoteResponse response = poster.performRequest(url, rawMessage);
-                            deleteEvents = response.getResponseCode() == HTTP_OK; // Delete events on any successful post, regardless of 1 or 0 response
-                            if (mFailedRetries > 0) {
-                                mFailedRetries = 0;
-                                removeMessages(FLUSH_QUEUE, token);
+            // Keeps up to UploadWindow batches uploading at once, reading FlushPrefetchDepth more batches ahead while
+            // they are in flight. Responses are collected in the order the batches were read, and each batch is only
+            // deleted after it and every batch before it succeeded, so ack never removes an unsent record.
+            // Returns true if it stopped after FLUSH_BATCHES_PER_TURN batches with more left to send.
+            private boolean sendDataPipelined(final EventStore dbAdapter, final String token, final MPDbAdapter.Table table,
+                    final List<String> urls, final boolean includeAutomaticEvents, final FlushStats stats) {
+                final int window = getUploadScheduler().getWindow();
+                final int readAhead = window + Math.max(0, mConfig.getFlushPrefetchDepth());
+                final List<EventStore.Batch> batches = new ArrayList<>(); // Read and not yet acknowledged, oldest first
+                final Deque<Future<RemoteResponse>> uploads = new ArrayDeque<>(); // For the oldest uploads.size() batches
+                long readAfter = EventStore.NO_ID;
+                boolean readAll = false;
+                int batchesRead = 0;
+
+                while (true) {
+                    while (uploads.size() < window && uploads.size() < batches.size()) {
+                        uploads.add(submitBatch(urls, batches.get(uploads.size()).getData()));
+                    }
+                    while (!readAll && batches.size() < readAhead && batchesRead < FLUSH_BATCHES_PER_TURN) {
+                        final EventStore.Batch batch = dbAdapter.peekBatch(table, token, includeAutomaticEvents, readAfter);
+                        if (batch == null) {
+                            readAll = true;
+                        } else {
+                            batches.add(batch);
+                            batchesRead++;
+                            readAfter = batch.getLastId();
+                            if (uploads.size() < window) {
+                                uploads.add(submitBatch(urls, batch.getData()));
                             }
+                        }
+                    }
+                    if (uploads.isEmpty()) {
+                        return !readAll;
+                    }
 
-                            logAboutMessageToMixpanel("Posted to " + url + ": \n" + rawMessage);
-                            logAboutMessageToMixpanel("Response code = " + response.getResponseCode());
-                            logAboutMessageToMixpanel("Response message = " + response.getResponseMessage());
-                            break;
-                        } catch (final OutOfMemoryError e) {
-                            MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
-                            deleteEvents = false;
-                        } catch (final MalformedURLException e) {
-                            MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
-                            deleteEvents = false;
-                        } catch (final RemoteService.ServiceUnavailableException e) {
-                            logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                            deleteEvents = false;
-                            mTrackEngageRetryAfter = e.getRetryAfter() * 1000;
-                        } catch (final IOException e) {
-                            logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
-                            deleteEvents = false;
+                    final EventStore.Batch batch = batches.remove(0);
+                    final RemoteResponse response = awaitBatch(uploads.poll());
+                    if (!acknowledgeBatch(response, urls, batch.getLastId(), dbAdapter, token, table, includeAutomaticEvents, stats)) {
+                        // Later batches can't be acknowledged ahead of this one. Their records stay queued,
+                        // and go out again with the retry even if their own upload succeeded.
+                        for (final Future<RemoteResponse> upload : uploads) {
+                            upload.cancel(true);
                         }
+                        return false;
                     }
+                }
+            }
 
-                    if (deleteEvents) {
-                        logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
-                        dbAdapter.cleanupEvents(lastId, table, token, includeAutomaticEvents);
-                    } else {
+            // Deletes the batch ending at lastId if it was accepted, or schedules a retry of the flush and returns false.
+            private boolean acknowledgeBatch(final RemoteResponse response, final List<String> urls, final long lastId, final EventStore dbAdapter,
+                    final String token, final MPDbAdapter.Table table, final boolean includeAutomaticEvents, final FlushStats stats) {
+                boolean deleteEvents = false;
+                if (response != null) {
+                    deleteEvents = response.getResponseCode() == HTTP_OK; // Delete events on any successful post, regardless of 1 or 0 response
+                    stats.postedBatches++;
+                    stats.requestBytes += response.getRequestBodyBytes();
+                    stats.sentBytes += response.getSentBodyBytes();
+                }
+
+                if (deleteEvents) {
+                    if (mFailedRetries > 0) {
+                        mFailedRetries = 0;
                         removeMessages(FLUSH_QUEUE, token);
-                        mTrackEngageRetryAfter = Math.max((long) Math.pow(2, mFailedRetries) * 60000, mTrackEngageRetryAfter);
-                        mTrackEngageRetryAfter = Math.min(mTrackEngageRetryAfter, 10 * 60 * 1000); // limit 10 min
-                        final Message flushMessage = Message.obtain();
-                        flushMessage.what = FLUSH_QUEUE;
-                        flushMessage.obj = token;
-                        sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
-                        mFailedRetries++;
-                        logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
-                        break;
                     }
+                    logAboutMessageToMixpanel("Not retrying this batch of events, deleting them from DB.");
+                    dbAdapter.ack(table, token, lastId, includeAutomaticEvents);
+                    return true;
+                }
+
+                stats.failed = true;
+                removeMessages(FLUSH_QUEUE, token);
+                mTrackEngageRetryAfter = getRetryDelay(urls);
+                final Message flushMessage = Message.obtain();
+                flushMessage.what = FLUSH_QUEUE;
+                flushMessage.obj = token;
+                sendMessageDelayed(flushMessage, mTrackEngageRetryAfter);
+                mFailedRetries++;
+                logAboutMessageToMixpanel("Retrying this batch of events in " + mTrackEngageRetryAfter + " ms");
+                return false;
+            }
+
+            // Posts to each url whose circuit breaker allows it until one answers, and returns that response, or null
+            // if none did. A slow url may be hedged against the next healthy one. May run on an upload thread, so it
+            // must not touch the database or handler state other than the thread-safe circuit breakers.
+            private RemoteResponse postBatch(final List<String> urls, final String rawMessage) {
+                for (int i = 0; i < urls.size(); i++) {
+                    final String url = urls.get(i);
+                    final CircuitBreaker breaker = getCircuitBreaker(url);
+                    if (!breaker.allowRequest()) {
+                        logAboutMessageToMixpanel("Skipping " + url + " for another " + breaker.getRetryDelay() + " ms after failures");
+                        continue;
+                    }
+                    String hedgeUrl = null;
+                    if (i + 1 < urls.size() && getCircuitBreaker(urls.get(i + 1)).isClosed()) {
+                        hedgeUrl = urls.get(i + 1);
+                    }
+                    // The scheduler reports each request's outcome to the breaker of the url it actually went to
+                    try {
+                        final RemoteResponse response = getUploadScheduler().post(url, hedgeUrl, rawMessage, mBreakerUpdater);
+                        logAboutMessageToMixpanel("Posted to " + url + ": \n" + rawMessage);
+                        logAboutMessageToMixpanel("Response code = " + response.getResponseCode());
+                        logAboutMessageToMixpanel("Response message = " + response.getResponseMessage());
+                        return response;
+                    } catch (final OutOfMemoryError e) {
+                        MPLog.e(LOGTAG, "Out of memory when posting to " + url + ".", e);
+                    } catch (final MalformedURLException e) {
+                        MPLog.e(LOGTAG, "Cannot interpret " + url + " as a URL.", e);
+                    } catch (final RemoteService.ServiceUnavailableException e) {
+                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                    } catch (final IOException e) {
+                        logAboutMessageToMixpanel("Cannot post message to " + url + ".", e);
+                    }
+                }
+                return null;
+            }
+
+            // Breakers are shared by the worker and upload threads
+            private CircuitBreaker getCircuitBreaker(String url) {
+                synchronized (mCircuitBreakers) {
+                    CircuitBreaker breaker = mCircuitBreakers.get(url);
+                    if (breaker == null) {
+                        breaker = new CircuitBreaker(url, mConfig.getCircuitBreakerListener());
+                        mCircuitBreakers.put(url, breaker);
+                    }
+                    return breaker;
+                }
+            }
 
-                    eventsData = dbAdapter.generateDataString(table, token, includeAutomaticEvents);
-                    if (eventsData != null) {
-                        queueCount = Integer.valueOf(eventsData[2]);
+            // Time until the first of the urls accepts requests again. A batch the endpoints rejected, such as
+            // with a 400, opens no breaker, so it backs off on its own: doubling from a minute with each failed
+            // retry up to ten minutes, jittered so devices that failed together don't retry together.
+            private long getRetryDelay(List<String> urls) {
+                long delay = Long.MAX_VALUE;
+                for (final String url : urls) {
+                    final CircuitBreaker breaker = getCircuitBreaker(url);
+                    if (breaker.getState() == CircuitBreaker.State.OPEN) {
+                        delay = Math.min(delay, breaker.getRetryDelay());
                     }
                 }
+                if (delay != Long.MAX_VALUE) {
+                    return delay;
+                }
+                final long backoff = Math.min(DEFAULT_RETRY_DELAY << Math.min(mFailedRetries, 10), MAX_RETRY_DELAY);
+                return backoff / 2 + (long) (mRetryJitter.nextDouble() * (backoff / 2));
+            }
+
+            private UploadScheduler getUploadScheduler() {
+                if (mUploadScheduler == null) {
+                    mUploadScheduler = new UploadScheduler(mConfig);
+                }
+                return mUploadScheduler;
+            }
+
+            private Future<RemoteResponse> submitBatch(final List<String> urls, final String rawMessage) {
+                return getUploadScheduler().submit(new Callable<RemoteResponse>() {
+                    @Override
+                    public RemoteResponse call() {
+                        return postBatch(urls, rawMessage);
+                    }
+                });
             }
 
-            private String getLocalTime() {
+            private RemoteResponse awaitBatch(final Future<RemoteResponse> upload) {
                 try {
-                    final Calendar c = Calendar.getInstance();
-                    final int offset = (c.get(Calendar.ZONE_OFFSET) + c.get(Calendar.DST_OFFSET)) / (60 * 1000);
-                    final int hourOffset = Math.abs(offset / 60);
-                    final int minuteOffset = Math.abs(offset % 60);
-                    final String tz;
-                    if (offset == 0) {
-                        tz = "Z";
-                    } else {
-                        tz = ((offset > 0) ? "-" : "+") + String.format(Locale.ENGLISH, "%02d", hourOffset)
-                                + ":" + String.format(Locale.ENGLISH, "%02d", minuteOffset);
+                    return upload.get();
+                } catch (final InterruptedException e) {
+                    MPLog.e(LOGTAG, "Interrupted while waiting for an upload to finish.", e);
+                    upload.cancel(true);
+                    Thread.currentThread().interrupt();
+                    return null;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    }
+                    if (cause instanceof Error) {
+                        throw (Error) cause;
                     }
-                    final DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss" + tz, Locale.ENGLISH);
-                    return format.format(c.getTime());
-                } catch (Throwable t) {
-                    return "ERROR";
+                    MPLog.e(LOGTAG, "Upload failed unexpectedly.", cause);
+                    return null;
                 }
             }
 
             private JSONObject prepareEventObject(final EventDescription eventDescription) throws JSONException {
                 final JSONObject eventObj = new JSONObject();
-                final JSONObject eventProperties = eventDescription.getProperties();
+                final JSONObject eventProperties = eventDescription.buildProperties();
                 final JSONObject sendProperties = new JSONObject();
                 sendProperties.put("seq_no", sequenceNumber.getSequenceNumberAndIncrement());
-                long ts = System.currentTimeMillis();
+                long ts = eventDescription.getTimestamp();
+                if (ts < 0) {
+                    ts = System.currentTimeMillis();
+                }
                 if (eventProperties != null) {
                     final Iterator<String> iterator = eventProperties.keys();
                     while (iterator.hasNext()) {
@@ -550,12 +942,42 @@ class AnalyticsMessages {
                         ts = eventProperties.getLong("time");
                     } catch (final Throwable ignored) { }
                 }
-                eventObj.put("event", eventDescription.getEventName().toLowerCase(Locale.ENGLISH)
-                        .replace(" ", "_").replace("-", "_"));
+                eventObj.put("event", normalizeEventName(eventDescription.getEventName()));
                 eventObj.put("ts", ts);
                 eventObj.put("payload", sendProperties);
                 return eventObj;
             }
+
+            // Writes the same event prepareEventObject would, straight from the EventBuilder
+            private String prepareEventString(final EventDescription eventDescription) throws JSONException {
+                final EventBuilder eventBuilder = eventDescription.getEventBuilder();
+                try {
+                    eventDescription.addDefaults();
+                    final long seqNo = sequenceNumber.getSequenceNumberAndIncrement();
+                    final long ts = eventBuilder.getLong("time", eventDescription.getTimestamp());
+
+                    final StringBuilder out = mEventStringBuilder;
+                    out.setLength(0);
+                    out.append("{\"event\":");
+                    EventBuilder.writeString(out, normalizeEventName(eventDescription.getEventName()));
+                    out.append(",\"ts\":").append(ts);
+                    out.append(",\"payload\":{");
+                    boolean hasProperties = false;
+                    if (!eventBuilder.has("seq_no")) {
+                        out.append("\"seq_no\":").append(seqNo);
+                        hasProperties = true;
+                    }
+                    eventBuilder.writeProperties(out, hasProperties);
+                    out.append("}}");
+                    return out.toString();
+                } finally {
+                    eventBuilder.recycle();
+                }
+            }
+
+            private String normalizeEventName(String eventName) {
+                return sEventNameCache.normalize(eventName);
+            }
         }// AnalyticsMessageHandler
     }
 }
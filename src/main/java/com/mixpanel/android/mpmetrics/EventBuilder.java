@@ -0,0 +1,391 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.MPLog;
+import java.util.Iterator;
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * An event and its properties, for tracking high frequency events without allocating
+ * JSONObjects or boxing numbers.
+ *
+ * <p>Get an EventBuilder with {@link #obtain(String)}, add properties, and pass it to
+ * {@link MixpanelAPI#trackEvent(EventBuilder)}:
+ *
+ * <pre>
+ * {@code
+ * mixpanel.trackEvent(EventBuilder.obtain("Frame Rendered")
+ *         .putLong("frame", frameNumber)
+ *         .putDouble("duration ms", durationMs)
+ *         .putBoolean("dropped", dropped));
+ * }
+ * </pre>
+ *
+ * <p>Properties are kept in parallel primitive arrays and are written straight to the stored
+ * form of the event on the Mixpanel worker thread, which then returns the builder to a shared pool.
+ * Once an EventBuilder has been tracked or recycled it must not be used again.
+ *
+ * <p>EventBuilders are not thread safe.
+ */
+public class EventBuilder {
+
+    /**
+     * Returns an empty EventBuilder for the named event, from the pool if one is available.
+     */
+    public static EventBuilder obtain(String eventName) {
+        EventBuilder builder = null;
+        synchronized (sPoolSync) {
+            if (sPoolSize > 0) {
+                sPoolSize--;
+                builder = sPool[sPoolSize];
+                sPool[sPoolSize] = null;
+            }
+        }
+        if (null == builder) {
+            builder = new EventBuilder();
+        }
+        builder.mEventName = eventName;
+        return builder;
+    }
+
+    public EventBuilder putLong(String key, long value) {
+        final int index = slotFor(key);
+        if (index >= 0) {
+            mTypes[index] = TYPE_LONG;
+            mLongValues[index] = value;
+        }
+        return this;
+    }
+
+    public EventBuilder putDouble(String key, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            MPLog.w(LOGTAG, "Property " + key + " of event " + mEventName + " is not a finite number and will be ignored");
+            return this;
+        }
+        final int index = slotFor(key);
+        if (index >= 0) {
+            mTypes[index] = TYPE_DOUBLE;
+            mDoubleValues[index] = value;
+        }
+        return this;
+    }
+
+    public EventBuilder putBoolean(String key, boolean value) {
+        final int index = slotFor(key);
+        if (index >= 0) {
+            mTypes[index] = TYPE_BOOLEAN;
+            mLongValues[index] = value ? 1 : 0;
+        }
+        return this;
+    }
+
+    /**
+     * @param value the value of the property. A null value removes the property, like JSONObject.put
+     */
+    public EventBuilder putString(String key, String value) {
+        if (null == value) {
+            remove(key);
+            return this;
+        }
+        final int index = slotFor(key);
+        if (index >= 0) {
+            mTypes[index] = TYPE_STRING;
+            mObjectValues[index] = value;
+        }
+        return this;
+    }
+
+    public EventBuilder remove(String key) {
+        final int index = indexOf(key);
+        if (index >= 0) {
+            mSize--;
+            System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index);
+            System.arraycopy(mTypes, index + 1, mTypes, index, mSize - index);
+            System.arraycopy(mLongValues, index + 1, mLongValues, index, mSize - index);
+            System.arraycopy(mDoubleValues, index + 1, mDoubleValues, index, mSize - index);
+            System.arraycopy(mObjectValues, index + 1, mObjectValues, index, mSize - index);
+            mKeys[mSize] = null;
+            mObjectValues[mSize] = null;
+        }
+        return this;
+    }
+
+    public String getEventName() {
+        return mEventName;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Clears the builder and returns it to the pool. Only call this for builders you won't track,
+     * tracked builders are recycled by Mixpanel.
+     */
+    public void recycle() {
+        for (int i = 0; i < mSize; i++) {
+            mKeys[i] = null;
+            mObjectValues[i] = null;
+        }
+        mSize = 0;
+        mEventName = null;
+        if (mKeys.length > MAX_POOLED_CAPACITY) {
+            return; // Don't keep unusually large builders around
+        }
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                sPool[sPoolSize] = this;
+                sPoolSize++;
+            }
+        }
+    }
+
+    /* package */ boolean has(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the numeric value of key the way JSONObject.getLong would read it, including numbers
+     * given as strings, or defaultValue if the property isn't a number.
+     */
+    /* package */ long getLong(String key, long defaultValue) {
+        final int index = indexOf(key);
+        if (index < 0) {
+            return defaultValue;
+        }
+        switch (mTypes[index]) {
+            case TYPE_LONG:
+                return mLongValues[index];
+            case TYPE_DOUBLE:
+                return (long) mDoubleValues[index];
+            case TYPE_STRING:
+            case TYPE_JSON:
+                return toLong(mObjectValues[index], defaultValue);
+            default:
+                return defaultValue;
+        }
+    }
+
+    // Same conversion as JSONObject.getLong, which parses strings as doubles
+    private static long toLong(Object value, long defaultValue) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Double.valueOf((String) value).longValue();
+            } catch (final NumberFormatException e) {
+                return defaultValue;
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Adds the property only if the builder doesn't have one with the same key, so properties
+     * given by the caller win over the ones Mixpanel adds. value may be anything JSONObject.put accepts.
+     */
+    /* package */ void putDefault(String key, Object value) {
+        if (null == key || null == value || has(key)) {
+            return;
+        }
+        final int index = slotFor(key);
+        mTypes[index] = TYPE_JSON;
+        mObjectValues[index] = value;
+    }
+
+    /* package */ void putDefaults(JSONObject properties) {
+        final Iterator<String> keys = properties.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            putDefault(key, properties.opt(key));
+        }
+    }
+
+    /* package */ void putDefaults(Map<String, String> properties) {
+        for (final Map.Entry<String, String> entry : properties.entrySet()) {
+            putDefault(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Writes the properties as the members of a JSON object, without the enclosing braces.
+     *
+     * @return the number of properties written
+     */
+    /* package */ int writeProperties(StringBuilder out, boolean leadingComma) throws JSONException {
+        for (int i = 0; i < mSize; i++) {
+            if (leadingComma || i > 0) {
+                out.append(',');
+            }
+            writeString(out, mKeys[i]);
+            out.append(':');
+            switch (mTypes[i]) {
+                case TYPE_LONG:
+                    out.append(mLongValues[i]);
+                    break;
+                case TYPE_DOUBLE:
+                    writeDouble(out, mDoubleValues[i]);
+                    break;
+                case TYPE_BOOLEAN:
+                    out.append(mLongValues[i] != 0);
+                    break;
+                case TYPE_STRING:
+                    writeString(out, (String) mObjectValues[i]);
+                    break;
+                default:
+                    writeValue(out, mObjectValues[i]);
+                    break;
+            }
+        }
+        return mSize;
+    }
+
+    /* package */ static void writeString(StringBuilder out, String value) {
+        out.append('"');
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        out.append("\\u00");
+                        out.append(HEX_DIGITS[c >> 4]);
+                        out.append(HEX_DIGITS[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+        out.append('"');
+    }
+
+    private static void writeDouble(StringBuilder out, double value) {
+        // Whole numbers are written without a fraction, like JSONObject does
+        if (value == (long) value && Math.abs(value) < WHOLE_DOUBLE_LIMIT) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+    }
+
+    // Values added by Mixpanel, such as super properties, which are already JSON values
+    private static void writeValue(StringBuilder out, Object value) throws JSONException {
+        if (value instanceof String) {
+            writeString(out, (String) value);
+        } else if (value instanceof Boolean || value instanceof Integer || value instanceof Long) {
+            out.append(value);
+        } else if (value instanceof Number) {
+            out.append(JSONObject.numberToString((Number) value));
+        } else if (value instanceof JSONObject || value instanceof JSONArray) {
+            out.append(value.toString());
+        } else if (value == JSONObject.NULL) {
+            out.append("null");
+        } else {
+            writeString(out, value.toString());
+        }
+    }
+
+    // Returns the index the value for key should be written to, adding a slot if needed
+    private int slotFor(String key) {
+        if (null == key) {
+            MPLog.w(LOGTAG, "Properties of event " + mEventName + " can't have null keys");
+            return -1;
+        }
+        final int existing = indexOf(key);
+        if (existing >= 0) {
+            mObjectValues[existing] = null;
+            return existing;
+        }
+        if (mSize == mKeys.length) {
+            grow();
+        }
+        mKeys[mSize] = key;
+        mSize++;
+        return mSize - 1;
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < mSize; i++) {
+            if (key.equals(mKeys[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void grow() {
+        final int capacity = mKeys.length * 2;
+        final String[] keys = new String[capacity];
+        final byte[] types = new byte[capacity];
+        final long[] longValues = new long[capacity];
+        final double[] doubleValues = new double[capacity];
+        final Object[] objectValues = new Object[capacity];
+        System.arraycopy(mKeys, 0, keys, 0, mSize);
+        System.arraycopy(mTypes, 0, types, 0, mSize);
+        System.arraycopy(mLongValues, 0, longValues, 0, mSize);
+        System.arraycopy(mDoubleValues, 0, doubleValues, 0, mSize);
+        System.arraycopy(mObjectValues, 0, objectValues, 0, mSize);
+        mKeys = keys;
+        mTypes = types;
+        mLongValues = longValues;
+        mDoubleValues = doubleValues;
+        mObjectValues = objectValues;
+    }
+
+    private EventBuilder() {
+        mKeys = new String[INITIAL_CAPACITY];
+        mTypes = new byte[INITIAL_CAPACITY];
+        mLongValues = new long[INITIAL_CAPACITY];
+        mDoubleValues = new double[INITIAL_CAPACITY];
+        mObjectValues = new Object[INITIAL_CAPACITY];
+    }
+
+    private String mEventName;
+    private int mSize = 0;
+    private String[] mKeys;
+    private byte[] mTypes;
+    private long[] mLongValues; // longs and booleans
+    private double[] mDoubleValues;
+    private Object[] mObjectValues; // strings and values added by Mixpanel
+
+    private static final byte TYPE_LONG = 0;
+    private static final byte TYPE_DOUBLE = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_STRING = 3;
+    private static final byte TYPE_JSON = 4;
+
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int MAX_POOLED_CAPACITY = 256;
+    private static final int MAX_POOL_SIZE = 32;
+    private static final double WHOLE_DOUBLE_LIMIT = 1e15;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String LOGTAG = "MixpanelAPI.EventBuilder";
+
+    private static final Object sPoolSync = new Object();
+    private static final EventBuilder[] sPool = new EventBuilder[MAX_POOL_SIZE];
+    private static int sPoolSize = 0;
+}
@@ -0,0 +1,87 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the normalized form of event names, so an app tracking the same few event names
+ * over and over doesn't build new strings for every event.
+ *
+ * A name is normalized by lower casing it and replacing spaces and dashes with underscores. Once
+ * the cache holds its maximum number of names, further names are normalized on every call but
+ * not stored, so apps that build event names dynamically can't grow it without bound.
+ *
+ * Safe to use from any thread.
+ */
+/* package */ class EventNameCache {
+
+    public EventNameCache(int maxNames) {
+        mMaxNames = maxNames;
+        mNames = new ConcurrentHashMap<>();
+    }
+
+    public String normalize(String eventName) {
+        final String cached = mNames.get(eventName);
+        if (null != cached) {
+            mHits.incrementAndGet();
+            return cached;
+        }
+
+        mMisses.incrementAndGet();
+        final String normalized = normalizeName(eventName);
+        if (mNames.size() < mMaxNames) {
+            mNames.put(eventName, normalized);
+        }
+        return normalized;
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public int size() {
+        return mNames.size();
+    }
+
+    /**
+     * Same result as eventName.toLowerCase(Locale.ENGLISH).replace(" ", "_").replace("-", "_"),
+     * in one pass over ASCII names. Returns eventName itself if nothing changes.
+     */
+    /* package */ static String normalizeName(String eventName) {
+        final int length = eventName.length();
+        char[] out = null;
+        for (int i = 0; i < length; i++) {
+            final char c = eventName.charAt(i);
+            final char replacement;
+            if (c >= 'A' && c <= 'Z') {
+                replacement = (char) (c + ('a' - 'A'));
+            } else if (c == ' ' || c == '-') {
+                replacement = '_';
+            } else if (c >= 0x80) {
+                // Lower casing outside of ASCII can change the length of the name
+                return eventName.toLowerCase(Locale.ENGLISH).replace(" ", "_").replace("-", "_");
+            } else {
+                replacement = c;
+            }
+
+            if (replacement != c && null == out) {
+                out = eventName.toCharArray();
+            }
+            if (null != out) {
+                out[i] = replacement;
+            }
+        }
+        return null == out ? eventName : new String(out);
+    }
+
+    private final int mMaxNames;
+    private final Map<String, String> mNames;
+    private final AtomicLong mHits = new AtomicLong(0);
+    private final AtomicLong mMisses = new AtomicLong(0);
+}
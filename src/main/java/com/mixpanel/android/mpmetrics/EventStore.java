@@ -0,0 +1,96 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.List;
+
+/**
+ * Where AnalyticsMessages queues events and people updates until they are uploaded.
+ *
+ * Records are kept per table and project token, each with an id that increases in the order
+ * records were appended, and are read back oldest first. A queue's automatic events are kept
+ * apart from its other records, so they can be left out of uploads or dropped. Implementations
+ * are used from the worker thread, but must tolerate automatic events being cleaned up from
+ * elsewhere.
+ */
+/* package */ interface EventStore {
+
+    /**
+     * Adds records to the end of their queues.
+     *
+     * @return the largest number of records queued for any table and token touched, including
+     * automatic events, MPDbAdapter.DB_UNDEFINED_CODE if records is empty, or
+     * MPDbAdapter.DB_OUT_OF_MEMORY_ERROR/MPDbAdapter.DB_UPDATE_ERROR on failure
+     */
+    int append(List<MPDbAdapter.Record> records);
+
+    /**
+     * Reads, without removing them, the oldest records of a queue that fit in one upload request.
+     *
+     * @param afterId only records with a larger id are read, so the next batch can be read while an
+     * earlier one is still being uploaded. NO_ID reads from the oldest record.
+     * @return the batch, or null if there are no such records or they couldn't be read
+     */
+    Batch peekBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, long afterId);
+
+    /**
+     * Removes the records of a queue with an id up to and including lastId, once they are uploaded.
+     */
+    void ack(MPDbAdapter.Table table, String token, long lastId, boolean includeAutomaticEvents);
+
+    /**
+     * Removes records of every token that were appended at or before time.
+     */
+    void expire(MPDbAdapter.Table table, long time);
+
+    int depth(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents);
+
+    void cleanupAutomaticEvents(String token);
+
+    /**
+     * Removes every record of one project. Stores are shared by all projects, so this must leave
+     * the records of other tokens, and the store itself, usable.
+     */
+    void deleteRecords(String token);
+
+    // Removes the records of every project
+    void deleteDB();
+
+    void close();
+
+    long NO_ID = 0;
+
+    /**
+     * Consecutive records of a queue, as the body of one upload request.
+     */
+    class Batch {
+        public Batch(long lastId, String data, int count, int depth) {
+            mLastId = lastId;
+            mData = data;
+            mCount = count;
+            mDepth = depth;
+        }
+
+        // The id to pass to ack once the batch is uploaded
+        public long getLastId() {
+            return mLastId;
+        }
+
+        // The records' JSON, one record per line
+        public String getData() {
+            return mData;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        // Records queued when the batch was read, including the batch itself
+        public int getDepth() {
+            return mDepth;
+        }
+
+        private final long mLastId;
+        private final String mData;
+        private final int mCount;
+        private final int mDepth;
+    }
+}
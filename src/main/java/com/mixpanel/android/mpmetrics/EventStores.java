@@ -0,0 +1,49 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+
+/**
+ * Picks the {@link EventStore} configured with com.mixpanel.android.MPConfig.EventStore.
+ */
+/* package */ class EventStores {
+
+    public static EventStore getInstance(Context context, String token) {
+        if (STORE_LOG.equals(MPConfig.getInstance(context, token).getEventStore())) {
+            return SegmentLogStore.getInstance(context, token);
+        }
+        return MPDbAdapter.getInstance(context, token);
+    }
+
+    /**
+     * Like {@link #getInstance(Context, String)}, but also applies the worker's connection and
+     * encoding settings from config to an MPDbAdapter, and imports the records earlier versions of
+     * the library left in token's own database. Must be called from the worker thread.
+     */
+    public static EventStore getWorkerInstance(Context context, MPConfig config, String token) {
+        if (STORE_LOG.equals(config.getEventStore())) {
+            return SegmentLogStore.getInstance(context, token);
+        }
+        final MPDbAdapter adapter = MPDbAdapter.getInstance(context, token);
+        adapter.setKeepConnectionOpen(config.getDatabaseIdleTimeout() > 0);
+        adapter.setCompactEncoding(config.getCompactDatabaseEncoding());
+        adapter.importLegacyDatabase(context.getApplicationContext(), token);
+        return adapter;
+    }
+
+    /**
+     * Whether the store token is configured with is already on disk. Only looks for files, so it
+     * can be called from any thread.
+     */
+    public static boolean exists(Context context, String token) {
+        if (STORE_LOG.equals(MPConfig.getInstance(context, token).getEventStore())) {
+            return SegmentLogStore.getDirectory(context.getApplicationContext()).exists();
+        }
+        return MPDbAdapter.databaseExists(context, token);
+    }
+
+    private EventStores() {
+    }
+
+    public static final String STORE_SQLITE = "sqlite";
+    public static final String STORE_LOG = "log";
+}
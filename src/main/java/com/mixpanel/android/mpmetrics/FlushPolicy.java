@@ -0,0 +1,27 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.support.annotation.Nullable;
+
+/**
+ * Implement this to decide when Mixpanel uploads queued events and people updates, and set it with
+ * {@link MPConfig#setFlushPolicy(FlushPolicy)}. Without a policy, Mixpanel flushes once
+ * BulkUploadLimit records are queued, or FlushInterval milliseconds after the first one was.
+ *
+ * Explicit calls to {@link MixpanelAPI#flush()} always flush right away.
+ */
+public interface FlushPolicy {
+
+    /**
+     * Called on the Mixpanel worker thread every time new records are written to the queue.
+     *
+     * @param queueDepth the number of records waiting to be uploaded for the project
+     * @param millisSinceLastUpload milliseconds since the last upload request finished, or -1 if there hasn't been one
+     * @param averageFlushInterval the average number of milliseconds between flushes so far, or 0 if not yet known
+     * @param averageUploadLatency the recent average duration of an upload request in milliseconds, or 0 if not yet known
+     * @param isWifiConnected true if the device is on Wi-Fi, false if it isn't, or null if that can't be determined
+     * @return 0 to flush right away, a positive number of milliseconds to flush after unless a flush is already
+     * scheduled, or a negative number to not schedule a flush
+     */
+    long getFlushDelay(int queueDepth, long millisSinceLastUpload, long averageFlushInterval,
+            long averageUploadLatency, @Nullable Boolean isWifiConnected);
+}
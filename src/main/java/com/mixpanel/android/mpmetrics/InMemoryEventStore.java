@@ -0,0 +1,217 @@
+package com.mixpanel.android.mpmetrics;
+
+import com.mixpanel.android.util.StringUtils;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An {@link EventStore} that keeps records in a fixed size ring buffer in memory, for running
+ * AnalyticsMessages in tests and benchmarks without a database. Nothing survives the process.
+ *
+ * Records of every queue share the ring, in the order they were appended. Acknowledged records
+ * leave a hole until every record before them is gone too, so a queue that is never uploaded
+ * can fill the ring; appends then fail with MPDbAdapter.DB_OUT_OF_MEMORY_ERROR, like they do
+ * when the database runs out of space.
+ */
+/* package */ class InMemoryEventStore implements EventStore {
+
+    public InMemoryEventStore(MPConfig config, int capacity) {
+        mConfig = config;
+        mIds = new long[capacity];
+        mCreatedAt = new long[capacity];
+        mTables = new MPDbAdapter.Table[capacity];
+        mTokens = new String[capacity];
+        mAutomatic = new boolean[capacity];
+        mData = new String[capacity];
+    }
+
+    @Override
+    public synchronized int append(List<MPDbAdapter.Record> records) {
+        if (records.isEmpty()) {
+            return MPDbAdapter.DB_UNDEFINED_CODE;
+        }
+        if (mSize + records.size() > mData.length) {
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        final long createdAt = System.currentTimeMillis();
+        for (final MPDbAdapter.Record record : records) {
+            if (null == record.getToken()) {
+                continue;
+            }
+            final int slot = (mHead + mSize) % mData.length;
+            mIds[slot] = mNextId;
+            mCreatedAt[slot] = createdAt;
+            mTables[slot] = record.getTable();
+            mTokens[slot] = record.getToken();
+            mAutomatic[slot] = record.isAutomatic();
+            mData[slot] = record.getSerializedData();
+            mNextId++;
+            mSize++;
+            adjustDepth(record.getTable(), record.getToken(), record.isAutomatic(), 1);
+        }
+
+        int maxCount = 0;
+        for (final MPDbAdapter.Record record : records) {
+            maxCount = Math.max(maxCount, depth(record.getTable(), record.getToken(), true));
+        }
+        return maxCount;
+    }
+
+    @Override
+    public synchronized Batch peekBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, long afterId) {
+        final int maxRecords = mConfig.getMaxRecordsPerRequest(table);
+        final int maxRequestBytes = mConfig.getMaxRequestBytes();
+        final StringBuilder sb = mBatchBuilder;
+        sb.setLength(0);
+        long lastId = NO_ID;
+        int count = 0;
+        int bytes = 0;
+
+        for (int i = 0; i < mSize && count < maxRecords; i++) {
+            final int slot = (mHead + i) % mData.length;
+            if (mIds[slot] <= afterId || !matches(slot, table, token, includeAutomaticEvents)) {
+                continue;
+            }
+            // The batch always takes its first record, so a single oversized record can't stall the queue
+            final int recordBytes = StringUtils.utf8Length(mData[slot]);
+            if (NO_ID != lastId && bytes + 1 + recordBytes > maxRequestBytes) {
+                break;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+                bytes++;
+            }
+            sb.append(mData[slot]);
+            bytes += recordBytes;
+            lastId = mIds[slot];
+            count++;
+        }
+
+        if (NO_ID == lastId) {
+            return null;
+        }
+        return new Batch(lastId, sb.toString(), count, depth(table, token, includeAutomaticEvents));
+    }
+
+    @Override
+    public synchronized void ack(MPDbAdapter.Table table, String token, long lastId, boolean includeAutomaticEvents) {
+        for (int i = 0; i < mSize; i++) {
+            final int slot = (mHead + i) % mData.length;
+            if (mIds[slot] > lastId) {
+                break;
+            }
+            if (matches(slot, table, token, includeAutomaticEvents)) {
+                remove(slot);
+            }
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized void expire(MPDbAdapter.Table table, long time) {
+        for (int i = 0; i < mSize; i++) {
+            final int slot = (mHead + i) % mData.length;
+            if (mCreatedAt[slot] > time) {
+                break;
+            }
+            if (null != mData[slot] && mTables[slot] == table) {
+                remove(slot);
+            }
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized int depth(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        final Integer regular = mDepths.get(depthKey(table, token, false));
+        int depth = null == regular ? 0 : regular;
+        if (includeAutomaticEvents) {
+            final Integer automatic = mDepths.get(depthKey(table, token, true));
+            depth += null == automatic ? 0 : automatic;
+        }
+        return depth;
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token) {
+        for (int i = 0; i < mSize; i++) {
+            final int slot = (mHead + i) % mData.length;
+            if (null != mData[slot] && mAutomatic[slot] && token.equals(mTokens[slot])) {
+                remove(slot);
+            }
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized void deleteRecords(String token) {
+        for (int i = 0; i < mSize; i++) {
+            final int slot = (mHead + i) % mData.length;
+            if (null != mData[slot] && token.equals(mTokens[slot])) {
+                remove(slot);
+            }
+        }
+        compact();
+    }
+
+    @Override
+    public synchronized void deleteDB() {
+        for (int i = 0; i < mData.length; i++) {
+            mTables[i] = null;
+            mTokens[i] = null;
+            mData[i] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        mDepths.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private boolean matches(int slot, MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        return null != mData[slot] && mTables[slot] == table && token.equals(mTokens[slot]) &&
+                (includeAutomaticEvents || !mAutomatic[slot]);
+    }
+
+    private void remove(int slot) {
+        adjustDepth(mTables[slot], mTokens[slot], mAutomatic[slot], -1);
+        mTables[slot] = null;
+        mTokens[slot] = null;
+        mData[slot] = null;
+    }
+
+    // Frees the slots of removed records at the head of the ring
+    private void compact() {
+        while (mSize > 0 && null == mData[mHead]) {
+            mHead = (mHead + 1) % mData.length;
+            mSize--;
+        }
+    }
+
+    private void adjustDepth(MPDbAdapter.Table table, String token, boolean isAutomatic, int delta) {
+        final String key = depthKey(table, token, isAutomatic);
+        final Integer depth = mDepths.get(key);
+        mDepths.put(key, (null == depth ? 0 : depth) + delta);
+    }
+
+    private static String depthKey(MPDbAdapter.Table table, String token, boolean isAutomatic) {
+        return table.getName() + (isAutomatic ? ":1:" : ":0:") + token;
+    }
+
+    private final MPConfig mConfig;
+    private final long[] mIds;
+    private final long[] mCreatedAt;
+    private final MPDbAdapter.Table[] mTables;
+    private final String[] mTokens;
+    private final boolean[] mAutomatic;
+    private final String[] mData; // null for removed records
+    private final Map<String, Integer> mDepths = new HashMap<>();
+    private final StringBuilder mBatchBuilder = new StringBuilder();
+    private int mHead = 0;
+    private int mSize = 0;
+    private long mNextId = 1;
+}
@@ -8,12 +8,15 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import com.mixpanel.android.BuildConfig;
+import com.mixpanel.android.util.CircuitBreaker;
 import com.mixpanel.android.util.HttpService;
 import com.mixpanel.android.util.MPLog;
 import com.mixpanel.android.util.OfflineMode;
 import com.mixpanel.android.util.RemoteService;
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import javax.net.ssl.SSLContext;
@@ -38,6 +41,33 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanel.android.MPConfig.BulkUploadLimit</dt>
  *     <dd>An integer count of messages, the maximum number of messages to queue before an upload attempt. This value should be less than 50.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.MaxEventsPerRequest</dt>
+ *     <dd>An integer count of messages, the maximum number of messages sent in a single upload request. Defaults to 50.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxPeopleUpdatesPerRequest</dt>
+ *     <dd>An integer count of people updates, the maximum number of people updates sent in a single upload request to the people endpoint. Defaults to 50.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.MaxRequestBytes</dt>
+ *     <dd>An integer number of bytes, the approximate maximum UTF-8 encoded size of the messages sent in a single upload request, before any compression. A batch stops at whichever of this and MaxEventsPerRequest is reached first, but always carries at least one message. Defaults to 1048576 (1 MB).</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EnableAdaptiveFlush</dt>
+ *     <dd>A boolean value. If true, use an {@link AdaptiveFlushPolicy}, which waits for larger batches when not on Wi-Fi to save radio wakeups. Defaults to false. See also {@link #setFlushPolicy(FlushPolicy)}.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.FlushPrefetchDepth</dt>
+ *     <dd>An integer count of batches. If greater than zero, uploads run on a separate thread while up to this many following batches are read from the database, so reading and uploading overlap. Defaults to 0, which reads and uploads one batch at a time.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UploadWindow</dt>
+ *     <dd>An integer count of batches, the maximum number of upload requests in flight at once, and the maximum number of concurrent requests to any one endpoint. Batches are still acknowledged and deleted in order. Defaults to 1.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.UploadHedgePercentile</dt>
+ *     <dd>An integer percentile between 1 and 99. If set, and an upload takes longer than this percentile of the endpoint's recent latencies, the same batch is also sent to the next fallback endpoint and the first response is used. Your endpoints must tolerate receiving a batch twice. Defaults to 0, which never hedges.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.RequestCompression</dt>
+ *     <dd>A string value, either gzip or deflate. If present, upload request bodies are compressed with this encoding and sent with a matching Content-Encoding header. Your endpoint must accept compressed bodies. Defaults to no compression.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.RequestCompressionThreshold</dt>
+ *     <dd>An integer number of bytes. Request bodies smaller than this are sent uncompressed even if RequestCompression is set. Defaults to 1024.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.FlushInterval</dt>
  *     <dd>An integer number of milliseconds, the maximum time to wait before an upload if the bulk upload limit isn't reached.</dd>
  *
@@ -52,6 +82,25 @@ import javax.net.ssl.SSLSocketFactory;
  *          queue based on the storage capacity of the device, but will always allow queueing below this limit. Higher values
  *          will take up more storage even when user storage is very full.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.DatabaseIdleTimeout</dt>
+ *     <dd>An integer number of milliseconds. If greater than zero, the worker thread keeps its connection to the Mixpanel database open
+ *          between operations, and closes it only after it has been idle for this long. Defaults to 0, which closes the database after every operation.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EnableDatabaseWriteAheadLogging</dt>
+ *     <dd>A boolean value. If true, the Mixpanel database uses write-ahead logging, so writes of new events don't block behind reads of queued events. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EnableCompactDatabaseEncoding</dt>
+ *     <dd>A boolean value. If true, queued events and people updates are stored deflated against a dictionary trained on earlier records of the same project, which takes several times less space than JSON text. They are turned back into JSON when they are uploaded. Defaults to false.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.EventStore</dt>
+ *     <dd>A string value, either sqlite or log. With log, queued events and people updates are kept in append-only memory-mapped files instead of the SQLite database, which makes tracking and acknowledging uploads cheaper. Records already queued in the other store are not moved. Defaults to sqlite.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.DatabaseSynchronousMode</dt>
+ *     <dd>A string value, one of OFF, NORMAL, FULL or EXTRA. If present, used as the SQLite synchronous pragma of the Mixpanel database. Defaults to the SQLite default.</dd>
+ *
+ *     <dt>com.mixpanel.android.MPConfig.DatabaseCacheSize</dt>
+ *     <dd>An integer number. If not 0, used as the SQLite cache_size pragma of the Mixpanel database (pages if positive, KiB if negative). Defaults to 0, the SQLite default.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.ResourcePackageName</dt>
  *     <dd>A string java package name. Defaults to the package name of the Application. Users should set if the package name of their R class is different from the application package name due to application id settings.</dd>
  *
@@ -64,6 +113,9 @@ import javax.net.ssl.SSLSocketFactory;
  *     <dt>com.mixpanel.android.MPConfig.DisableAppOpenEvent</dt>
  *     <dd>A boolean value. If true, do not send an "$app_open" event when the MixpanelAPI object is created for the first time. Defaults to true - the $app_open event will not be sent by default.</dd>
  *
+ *     <dt>com.mixpanel.android.MPConfig.DeferEventConstruction</dt>
+ *     <dd>A boolean value. If true, track() only records the event name, the time, the properties object you pass and which super properties were registered, and the full event is built on the Mixpanel worker thread. Properties objects passed to track() must not be modified afterwards. Defaults to false.</dd>
+ *
  *     <dt>com.mixpanel.android.MPConfig.AutoShowMixpanelUpdates</dt>
  *     <dd>A boolean value. If true, automatically show notifications and A/B test variants. Defaults to true.</dd>
  *
@@ -188,6 +240,30 @@ public class MPConfig {
         }
     }
 
+    /**
+     * Sets the {@link FlushPolicy} that decides when queued records are uploaded, for example an
+     * {@link AdaptiveFlushPolicy}. Pass null to flush on BulkUploadLimit and FlushInterval alone.
+     *
+     * Like {@link #setOfflineMode(OfflineMode)}, this should be called before your first call to
+     * MixpanelAPI.getInstance. The policy is called from the Mixpanel worker thread.
+     *
+     * @param flushPolicy the policy to use, or null for the default behavior
+     */
+    public synchronized void setFlushPolicy(FlushPolicy flushPolicy) {
+        mFlushPolicy = flushPolicy;
+    }
+
+    /**
+     * Sets a listener that is told whenever an upload endpoint starts or stops failing, and how long
+     * Mixpanel will wait before trying it again. Like {@link #setOfflineMode(OfflineMode)}, this
+     * should be called before your first call to MixpanelAPI.getInstance.
+     *
+     * @param listener the listener to use, or null for none
+     */
+    public synchronized void setCircuitBreakerListener(CircuitBreaker.StateListener listener) {
+        mCircuitBreakerListener = listener;
+    }
+
     /**
      * {@link OfflineMode} allows Mixpanel to be in-sync with client offline internal logic.
      * If you want to integrate your own logic with Mixpanel you'll need to call
@@ -247,7 +323,6 @@ public class MPConfig {
             foundSSLFactory = null;
         }
         mSSLSocketFactory = foundSSLFactory;
-        setRemoteService(new HttpService());
 
         DEBUG = metaData.getBoolean("com.mixpanel.android.MPConfig.EnableDebugLogging", false);
         if (DEBUG) {
@@ -260,8 +335,73 @@ public class MPConfig {
 
         mBulkUploadLimit = metaData.getInt("com.mixpanel.android.MPConfig.BulkUploadLimit", 40); // 40 records default
         mFlushInterval = metaData.getInt("com.mixpanel.android.MPConfig.FlushInterval", 60 * 1000); // one minute default
+
+        int maxEventsPerRequest = metaData.getInt("com.mixpanel.android.MPConfig.MaxEventsPerRequest", 50); // 50 records default
+        if (maxEventsPerRequest <= 0) {
+            MPLog.w(LOGTAG, "com.mixpanel.android.MPConfig.MaxEventsPerRequest must be positive, using the default of 50 instead.");
+            maxEventsPerRequest = 50;
+        }
+        mMaxEventsPerRequest = maxEventsPerRequest;
+
+        int maxPeopleUpdatesPerRequest = metaData.getInt("com.mixpanel.android.MPConfig.MaxPeopleUpdatesPerRequest", 50); // 50 records default
+        if (maxPeopleUpdatesPerRequest <= 0) {
+            MPLog.w(LOGTAG, "com.mixpanel.android.MPConfig.MaxPeopleUpdatesPerRequest must be positive, using the default of 50 instead.");
+            maxPeopleUpdatesPerRequest = 50;
+        }
+        mMaxPeopleUpdatesPerRequest = maxPeopleUpdatesPerRequest;
+
+        int maxRequestBytes = metaData.getInt("com.mixpanel.android.MPConfig.MaxRequestBytes", 1024 * 1024); // 1 Mb
+        if (maxRequestBytes <= 0) {
+            MPLog.w(LOGTAG, "com.mixpanel.android.MPConfig.MaxRequestBytes must be positive, using the default of 1 Mb instead.");
+            maxRequestBytes = 1024 * 1024;
+        }
+        mMaxRequestBytes = maxRequestBytes;
+
+        if (metaData.getBoolean("com.mixpanel.android.MPConfig.EnableAdaptiveFlush", false)) {
+            mFlushPolicy = new AdaptiveFlushPolicy(mBulkUploadLimit, mFlushInterval);
+        }
+        mFlushPrefetchDepth = metaData.getInt("com.mixpanel.android.MPConfig.FlushPrefetchDepth", 0); // no prefetch by default
+        mUploadWindow = metaData.getInt("com.mixpanel.android.MPConfig.UploadWindow", 1); // one request at a time by default
+        mUploadHedgePercentile = metaData.getInt("com.mixpanel.android.MPConfig.UploadHedgePercentile", 0); // no hedging by default
+
+        String requestCompression = metaData.getString("com.mixpanel.android.MPConfig.RequestCompression");
+        if (null != requestCompression) {
+            requestCompression = requestCompression.toLowerCase(Locale.ENGLISH);
+            if (!REQUEST_COMPRESSIONS.contains(requestCompression)) {
+                MPLog.w(LOGTAG, "Ignoring unknown com.mixpanel.android.MPConfig.RequestCompression " + requestCompression);
+                requestCompression = null;
+            }
+        }
+        mRequestCompression = requestCompression;
+        mRequestCompressionThreshold = metaData.getInt("com.mixpanel.android.MPConfig.RequestCompressionThreshold", 1024); // 1 Kb
+        setRemoteService(new HttpService(mRequestCompression, mRequestCompressionThreshold));
+
         mDataExpiration = metaData.getInt("com.mixpanel.android.MPConfig.DataExpiration", 1000 * 60 * 60 * 24 * 5); // 5 days default
         mMinimumDatabaseLimit = metaData.getInt("com.mixpanel.android.MPConfig.MinimumDatabaseLimit", 20 * 1024 * 1024); // 20 Mb
+        mDatabaseIdleTimeout = metaData.getInt("com.mixpanel.android.MPConfig.DatabaseIdleTimeout", 0); // close after every operation by default
+        mDatabaseWriteAheadLogging = metaData.getBoolean("com.mixpanel.android.MPConfig.EnableDatabaseWriteAheadLogging", false);
+        mCompactDatabaseEncoding = metaData.getBoolean("com.mixpanel.android.MPConfig.EnableCompactDatabaseEncoding", false);
+
+        String eventStore = metaData.getString("com.mixpanel.android.MPConfig.EventStore");
+        if (null != eventStore) {
+            eventStore = eventStore.toLowerCase(Locale.ENGLISH);
+            if (!EVENT_STORES.contains(eventStore)) {
+                MPLog.w(LOGTAG, "Ignoring unknown com.mixpanel.android.MPConfig.EventStore " + eventStore);
+                eventStore = null;
+            }
+        }
+        mEventStore = null == eventStore ? EventStores.STORE_SQLITE : eventStore;
+        mDatabaseCacheSize = metaData.getInt("com.mixpanel.android.MPConfig.DatabaseCacheSize", 0); // SQLite default
+
+        String databaseSynchronousMode = metaData.getString("com.mixpanel.android.MPConfig.DatabaseSynchronousMode");
+        if (null != databaseSynchronousMode) {
+            databaseSynchronousMode = databaseSynchronousMode.toUpperCase(Locale.ENGLISH);
+            if (!SYNCHRONOUS_MODES.contains(databaseSynchronousMode)) {
+                MPLog.w(LOGTAG, "Ignoring unknown com.mixpanel.android.MPConfig.DatabaseSynchronousMode " + databaseSynchronousMode);
+                databaseSynchronousMode = null;
+            }
+        }
+        mDatabaseSynchronousMode = databaseSynchronousMode;
         mResourcePackageName = metaData.getString("com.mixpanel.android.MPConfig.ResourcePackageName"); // default is null
         mDisableGestureBindingUI = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableGestureBindingUI", true);
         mDisableEmulatorBindingUI = metaData.getBoolean("com.mixpanel.android.MPConfig.DisableEmulatorBindingUI", true);
@@ -275,6 +415,7 @@ public class MPConfig {
         mMinSessionDuration = metaData.getInt("com.mixpanel.android.MPConfig.MinimumSessionDuration", 10 * 1000); // 10 seconds
         mSessionTimeoutDuration = metaData.getInt("com.mixpanel.android.MPConfig.SessionTimeoutDuration", Integer.MAX_VALUE); // no timeout by default
         mTestMode = metaData.getBoolean("com.mixpanel.android.MPConfig.TestMode", false);
+        mDeferEventConstruction = metaData.getBoolean("com.mixpanel.android.MPConfig.DeferEventConstruction", false);
         mNotificationChannelImportance = metaData.getInt("com.mixpanel.android.MPConfig.NotificationChannelImportance", 3); // NotificationManger.IMPORTANCE_DEFAULT
         final boolean mUseIpAddressForGeolocation = metaData.getBoolean("com.mixpanel.android.MPConfig.UseIpAddressForGeolocation", true);
 
@@ -325,15 +466,31 @@ public class MPConfig {
                 "Mixpanel (" + VERSION + ") configured with:\n" +
                         "    AutoShowMixpanelUpdates " + getAutoShowMixpanelUpdates() + "\n" +
                         "    BulkUploadLimit " + getBulkUploadLimit() + "\n" +
+                        "    MaxEventsPerRequest " + getMaxEventsPerRequest() + "\n" +
+                        "    MaxPeopleUpdatesPerRequest " + getMaxPeopleUpdatesPerRequest() + "\n" +
+                        "    MaxRequestBytes " + getMaxRequestBytes() + "\n" +
+                        "    FlushPolicy " + getFlushPolicy() + "\n" +
+                        "    FlushPrefetchDepth " + getFlushPrefetchDepth() + "\n" +
+                        "    UploadWindow " + getUploadWindow() + "\n" +
+                        "    UploadHedgePercentile " + getUploadHedgePercentile() + "\n" +
+                        "    RequestCompression " + getRequestCompression() + "\n" +
+                        "    RequestCompressionThreshold " + getRequestCompressionThreshold() + "\n" +
                         "    FlushInterval " + getFlushInterval() + "\n" +
                         "    DataExpiration " + getDataExpiration() + "\n" +
                         "    MinimumDatabaseLimit " + getMinimumDatabaseLimit() + "\n" +
+                        "    DatabaseIdleTimeout " + getDatabaseIdleTimeout() + "\n" +
+                        "    EnableDatabaseWriteAheadLogging " + getDatabaseWriteAheadLogging() + "\n" +
+                        "    EnableCompactDatabaseEncoding " + getCompactDatabaseEncoding() + "\n" +
+                        "    EventStore " + getEventStore() + "\n" +
+                        "    DatabaseSynchronousMode " + getDatabaseSynchronousMode() + "\n" +
+                        "    DatabaseCacheSize " + getDatabaseCacheSize() + "\n" +
                         "    DisableAppOpenEvent " + getDisableAppOpenEvent() + "\n" +
                         "    DisableViewCrawler " + getDisableViewCrawler() + "\n" +
                         "    DisableGestureBindingUI " + getDisableGestureBindingUI() + "\n" +
                         "    DisableEmulatorBindingUI " + getDisableEmulatorBindingUI() + "\n" +
                         "    EnableDebugLogging " + DEBUG + "\n" +
                         "    TestMode " + getTestMode() + "\n" +
+                        "    DeferEventConstruction " + getDeferEventConstruction() + "\n" +
                         "    EventsEndpoint " + getEventsEndpoint() + "\n" +
                         "    PeopleEndpoint " + getPeopleEndpoint() + "\n" +
                         "    DecideEndpoint " + getDecideEndpoint() + "\n" +
@@ -355,6 +512,51 @@ public class MPConfig {
         return mBulkUploadLimit;
     }
 
+    // Max number of records sent in one upload request
+    public int getMaxEventsPerRequest() {
+        return mMaxEventsPerRequest;
+    }
+
+    // Max number of people records read for one upload request
+    public int getMaxPeopleUpdatesPerRequest() {
+        return mMaxPeopleUpdatesPerRequest;
+    }
+
+    // The batch size limit of the queue an EventStore reads table from
+    /* package */ int getMaxRecordsPerRequest(MPDbAdapter.Table table) {
+        return table == MPDbAdapter.Table.PEOPLE ? getMaxPeopleUpdatesPerRequest() : getMaxEventsPerRequest();
+    }
+
+    // Approximate max size of the records sent in one upload request, measured on their serialized JSON
+    public int getMaxRequestBytes() {
+        return mMaxRequestBytes;
+    }
+
+    // Batches read ahead while an upload is in flight. Zero or less reads and uploads one batch at a time.
+    public int getFlushPrefetchDepth() {
+        return mFlushPrefetchDepth;
+    }
+
+    // Max upload requests in flight at once, and per endpoint
+    public int getUploadWindow() {
+        return mUploadWindow;
+    }
+
+    // Latency percentile after which an upload is also sent to the next endpoint. Zero disables hedging.
+    public int getUploadHedgePercentile() {
+        return mUploadHedgePercentile;
+    }
+
+    // Content-Encoding for upload request bodies, or null to send them uncompressed
+    @Nullable
+    public String getRequestCompression() {
+        return mRequestCompression;
+    }
+
+    public int getRequestCompressionThreshold() {
+        return mRequestCompressionThreshold;
+    }
+
     // Target max milliseconds between flushes. This is advisory.
     public int getFlushInterval() {
         return mFlushInterval;
@@ -369,6 +571,35 @@ public class MPConfig {
         return mMinimumDatabaseLimit;
     }
 
+    // Milliseconds the worker keeps an idle database connection open. Zero or less closes it after every operation.
+    public int getDatabaseIdleTimeout() {
+        return mDatabaseIdleTimeout;
+    }
+
+    public boolean getDatabaseWriteAheadLogging() {
+        return mDatabaseWriteAheadLogging;
+    }
+
+    public boolean getCompactDatabaseEncoding() {
+        return mCompactDatabaseEncoding;
+    }
+
+    // Either EventStores.STORE_SQLITE or EventStores.STORE_LOG
+    public String getEventStore() {
+        return mEventStore;
+    }
+
+    // Value for PRAGMA synchronous, or null to keep the SQLite default
+    @Nullable
+    public String getDatabaseSynchronousMode() {
+        return mDatabaseSynchronousMode;
+    }
+
+    // Value for PRAGMA cache_size, or 0 to keep the SQLite default
+    public int getDatabaseCacheSize() {
+        return mDatabaseCacheSize;
+    }
+
     public boolean getDisableGestureBindingUI() {
         return mDisableGestureBindingUI;
     }
@@ -393,6 +624,10 @@ public class MPConfig {
         return mTestMode;
     }
 
+    public boolean getDeferEventConstruction() {
+        return mDeferEventConstruction;
+    }
+
     // Preferred URL for tracking events
     @Nullable
     public String getEventsEndpoint() {
@@ -486,6 +721,14 @@ public class MPConfig {
         return mOfflineMode;
     }
 
+    public synchronized FlushPolicy getFlushPolicy() {
+        return mFlushPolicy;
+    }
+
+    public synchronized CircuitBreaker.StateListener getCircuitBreakerListener() {
+        return mCircuitBreakerListener;
+    }
+
     // ImageStore LRU Cache size will be availableMaxMemory() / mImageCacheMaxMemoryFactor
     public int getImageCacheMaxMemoryFactor() {
         return mImageCacheMaxMemoryFactor;
@@ -510,10 +753,25 @@ public class MPConfig {
     }
 
     private final int mBulkUploadLimit;
+    private final int mMaxEventsPerRequest;
+    private final int mMaxPeopleUpdatesPerRequest;
+    private final int mMaxRequestBytes;
+    private final int mFlushPrefetchDepth;
+    private final int mUploadWindow;
+    private final int mUploadHedgePercentile;
+    private final String mRequestCompression;
+    private final int mRequestCompressionThreshold;
     private final int mFlushInterval;
     private final int mDataExpiration;
     private final int mMinimumDatabaseLimit;
+    private final int mDatabaseIdleTimeout;
+    private final boolean mDatabaseWriteAheadLogging;
+    private final boolean mCompactDatabaseEncoding;
+    private final String mEventStore;
+    private final String mDatabaseSynchronousMode;
+    private final int mDatabaseCacheSize;
     private final boolean mTestMode;
+    private final boolean mDeferEventConstruction;
     private final boolean mDisableGestureBindingUI;
     private final boolean mDisableEmulatorBindingUI;
     private final boolean mDisableAppOpenEvent;
@@ -542,7 +800,12 @@ public class MPConfig {
     private SSLSocketFactory mSSLSocketFactory;
     private RemoteService mRemoteService;
     private OfflineMode mOfflineMode;
+    private FlushPolicy mFlushPolicy;
+    private CircuitBreaker.StateListener mCircuitBreakerListener;
 
     private static Map<String, MPConfig> sInstances = new ConcurrentHashMap<>();
+    private static final List<String> SYNCHRONOUS_MODES = Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA");
+    private static final List<String> REQUEST_COMPRESSIONS = Arrays.asList(HttpService.COMPRESSION_GZIP, HttpService.COMPRESSION_DEFLATE);
+    private static final List<String> EVENT_STORES = Arrays.asList(EventStores.STORE_SQLITE, EventStores.STORE_LOG);
     private static final String LOGTAG = "MixpanelAPI.Conf";
 }
@@ -2,27 +2,43 @@ package com.mixpanel.android.mpmetrics;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.CharArrayBuffer;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.StringUtils;
 import java.io.File;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import org.json.JSONArray;
+import java.util.Set;
+import java.util.zip.DataFormatException;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * SQLite database adapter for MixpanelAPI.
  *
- * <p>Not thread-safe. Instances of this class should only be used
- * by a single thread.
+ * <p>Instances of this class should only be used by a single thread. Public methods
+ * are synchronized anyway, since automatic events can be cleaned up from elsewhere
+ * and compiled statements are shared by every operation on the connection.
+ *
+ * <p>The shared instance serves every project token. Per request limits are read from the
+ * config of the token being read, but settings of the database itself (write-ahead logging,
+ * synchronous mode, cache size and MinimumDatabaseLimit) come from the config of the token
+ * that first opened it.
  */
-/* package */ class MPDbAdapter {
+/* package */ class MPDbAdapter implements EventStore {
     private static final String LOGTAG = "MixpanelAPI.Database";
-    private static final Map<String, MPDbAdapter> sInstances = new HashMap<>();
+    private static final Object sInstanceLock = new Object();
+    private static MPDbAdapter sInstance;
+    private static final Set<String> sImportedTokens = new HashSet<>();
 
     public enum Table {
         EVENTS("events"),
@@ -39,38 +55,140 @@ import org.json.JSONObject;
         private final String mTableName;
     }
 
+    /**
+     * A single row to be written by {@link #addJSONBatch(List)}.
+     */
+    public static class Record {
+        private final JSONObject mData;
+        private final String mSerializedData;
+        private final String mToken;
+        private final Table mTable;
+        private final boolean mIsAutomatic;
+
+        public Record(JSONObject data, String token, Table table, boolean isAutomatic) {
+            mData = data;
+            mSerializedData = null;
+            mToken = token;
+            mTable = table;
+            mIsAutomatic = isAutomatic;
+        }
+
+        // A record that is already in its stored form, such as an event written by an EventBuilder
+        public Record(String serializedData, String token, Table table, boolean isAutomatic) {
+            mData = null;
+            mSerializedData = serializedData;
+            mToken = token;
+            mTable = table;
+            mIsAutomatic = isAutomatic;
+        }
+
+        // Null for records created from their serialized form
+        public JSONObject getData() {
+            return mData;
+        }
+
+        public String getSerializedData() {
+            return null == mSerializedData ? mData.toString() : mSerializedData;
+        }
+
+        public String getToken() {
+            return mToken;
+        }
+
+        public Table getTable() {
+            return mTable;
+        }
+
+        public boolean isAutomatic() {
+            return mIsAutomatic;
+        }
+    }
+
     public static final String KEY_DATA = "data";
     public static final String KEY_CREATED_AT = "created_at";
     public static final String KEY_AUTOMATIC_DATA = "automatic_data";
     public static final String KEY_TOKEN = "token";
+    // 0 if data holds the record's JSON text, otherwise the _id of the dictionary data was compressed with
+    public static final String KEY_ENCODING = "encoding";
 
     public static final int DB_UPDATE_ERROR = -1;
     public static final int DB_OUT_OF_MEMORY_ERROR = -2;
     public static final int DB_UNDEFINED_CODE = -3;
 
+    private static final int TABLE_COUNT = Table.values().length;
+    private static final int STATEMENT_INSERT = 0;
+    private static final int STATEMENT_DELETE_SENT = 1;
+    private static final int STATEMENT_KINDS = 2;
+
     private static final String DATABASE_NAME = "mixpanel";
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 7;
+    private static final String DICTIONARIES_TABLE = "dictionaries";
+    private static final String KEY_TABLE_NAME = "table_name";
+    // New records of a table and project get a freshly trained dictionary after this many
+    private static final int DICTIONARY_RETRAIN_RECORDS = 5000;
 
     private static final String CREATE_EVENTS_TABLE =
             "CREATE TABLE " + Table.EVENTS.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0)";
     private static final String CREATE_PEOPLE_TABLE =
             "CREATE TABLE " + Table.PEOPLE.getName() + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
                     KEY_DATA + " STRING NOT NULL, " +
                     KEY_CREATED_AT + " INTEGER NOT NULL, " +
                     KEY_AUTOMATIC_DATA + " INTEGER DEFAULT 0, " +
-                    KEY_TOKEN + " STRING NOT NULL DEFAULT '')";
+                    KEY_TOKEN + " STRING NOT NULL DEFAULT '', " +
+                    KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0)";
+    // Preset dictionaries for compactly encoded records, trained per table and token
+    private static final String CREATE_DICTIONARIES_TABLE =
+            "CREATE TABLE IF NOT EXISTS " + DICTIONARIES_TABLE + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    KEY_TABLE_NAME + " STRING NOT NULL, " +
+                    KEY_TOKEN + " STRING NOT NULL, " +
+                    KEY_DATA + " BLOB NOT NULL)";
     private static final String EVENTS_TIME_INDEX =
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.EVENTS.getName() +
                     " (" + KEY_CREATED_AT + ");";
     private static final String PEOPLE_TIME_INDEX =
             "CREATE INDEX IF NOT EXISTS time_idx ON " + Table.PEOPLE.getName() +
                     " (" + KEY_CREATED_AT + ");";
+    // Matches the token/automatic_data predicates of batch reads, sent-batch deletes and depth
+    // counts, and returns rows in _id order so batches don't need a sort step.
+    private static final String EVENTS_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS events_token_idx ON " + Table.EVENTS.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
+    private static final String PEOPLE_TOKEN_INDEX =
+            "CREATE INDEX IF NOT EXISTS people_token_idx ON " + Table.PEOPLE.getName() +
+                    " (" + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", _id);";
 
+    private final Context mContext;
     private final MPDatabaseHelper mDb;
+    private volatile boolean mKeepConnectionOpen;
+
+    // Rows held per table, token and automatic flag. Seeded with a single scan the first time a
+    // depth is needed, then kept up to date by every insert and delete so reads are O(1).
+    // Guarded by this.
+    private final Map<String, Integer> mQueueDepths = new HashMap<>();
+    private boolean mQueueDepthsSeeded = false;
+
+    // Statements compiled against mStatementsDb, indexed by statementIndex(). They live as long
+    // as the connection they were compiled for, and are closed before it is.
+    private final SQLiteStatement[] mStatements = new SQLiteStatement[STATEMENT_KINDS * TABLE_COUNT];
+    private SQLiteDatabase mStatementsDb;
+
+    // Reused by every generateDataString call, so building a batch only allocates the final String
+    private final CharArrayBuffer mRowBuffer = new CharArrayBuffer(1024);
+    private final StringBuilder mBatchBuilder = new StringBuilder();
+
+    // Compact encoding state. Dictionaries are immutable once stored, so they are cached by _id
+    // for reads, and the one new records are compressed with is tracked per table and token.
+    // Guarded by this.
+    private volatile boolean mCompactEncoding;
+    private RecordCompressor mCompressor;
+    private final Map<Long, byte[]> mDictionaries = new HashMap<>();
+    private final Map<String, Long> mActiveDictionaries = new HashMap<>();
+    private final Map<String, Integer> mDictionaryUses = new HashMap<>();
 
     private static class MPDatabaseHelper extends SQLiteOpenHelper {
         MPDatabaseHelper(Context context, String dbName, final String token) {
@@ -85,6 +203,60 @@ import org.json.JSONObject;
         public void deleteDatabase() {
             close();
             mDatabaseFile.delete();
+            // Leftovers of write-ahead logging or an interrupted rollback journal
+            new File(mDatabaseFile.getPath() + "-wal").delete();
+            new File(mDatabaseFile.getPath() + "-shm").delete();
+            new File(mDatabaseFile.getPath() + "-journal").delete();
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // Only called on API 16 and above, older devices enable WAL in onOpen
+            if (mConfig.getDatabaseWriteAheadLogging()) {
+                db.enableWriteAheadLogging();
+            }
+        }
+
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            if (db.isReadOnly()) {
+                return;
+            }
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && mConfig.getDatabaseWriteAheadLogging()) {
+                db.enableWriteAheadLogging();
+            }
+
+            final String synchronousMode = mConfig.getDatabaseSynchronousMode();
+            if (null != synchronousMode) {
+                db.execSQL("PRAGMA synchronous = " + synchronousMode);
+            }
+
+            final int cacheSize = mConfig.getDatabaseCacheSize();
+            if (0 != cacheSize) {
+                db.execSQL("PRAGMA cache_size = " + cacheSize);
+            }
+        }
+
+        /**
+         * Copies committed pages from the write-ahead log back into the database, without waiting
+         * for readers or writers, so the log doesn't keep growing while events are being sent.
+         * Does nothing unless write-ahead logging is enabled.
+         */
+        public void checkpoint(SQLiteDatabase db) {
+            if (!mConfig.getDatabaseWriteAheadLogging()) {
+                return;
+            }
+
+            Cursor c = null;
+            try {
+                c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+                c.moveToFirst();
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
         }
 
         @Override
@@ -95,21 +267,36 @@ import org.json.JSONObject;
             db.execSQL(CREATE_PEOPLE_TABLE);
             db.execSQL(EVENTS_TIME_INDEX);
             db.execSQL(PEOPLE_TIME_INDEX);
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+            db.execSQL(CREATE_DICTIONARIES_TABLE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            MPLog.v(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
+            if (oldVersion >= 4 && oldVersion <= 6) {
+                MPLog.v(LOGTAG, "Upgrading app, migrating Mixpanel events DB from version " + oldVersion);
 
-            if (newVersion == 5) {
-                migrateTableFrom4To5(db);
+                if (oldVersion == 4) {
+                    migrateTableFrom4To5(db);
+                }
+                if (oldVersion <= 5) {
+                    migrateTableFrom5To6(db);
+                }
+                migrateTableFrom6To7(db);
             } else {
+                MPLog.v(LOGTAG, "Upgrading app, replacing Mixpanel events DB");
+
                 db.execSQL("DROP TABLE IF EXISTS " + Table.EVENTS.getName());
                 db.execSQL("DROP TABLE IF EXISTS " + Table.PEOPLE.getName());
                 db.execSQL(CREATE_EVENTS_TABLE);
                 db.execSQL(CREATE_PEOPLE_TABLE);
                 db.execSQL(EVENTS_TIME_INDEX);
                 db.execSQL(PEOPLE_TIME_INDEX);
+                db.execSQL(EVENTS_TOKEN_INDEX);
+                db.execSQL(PEOPLE_TOKEN_INDEX);
+                db.execSQL("DROP TABLE IF EXISTS " + DICTIONARIES_TABLE);
+                db.execSQL(CREATE_DICTIONARIES_TABLE);
             }
         }
 
@@ -133,9 +320,9 @@ import org.json.JSONObject;
                     final JSONObject j = new JSONObject(eventsCursor.getString(eventsCursor.getColumnIndex(KEY_DATA)));
                     String token = j.getJSONObject("properties").getString("token");
                     rowId = eventsCursor.getInt(eventsCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.EVENTS.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
+                    db.execSQL("UPDATE " + Table.EVENTS.getName() + " SET " + KEY_TOKEN + " = ? WHERE _id = ?", new Object[] { token, rowId });
                 } catch (final JSONException e) {
-                    db.delete(Table.EVENTS.getName(), "_id = " + rowId, null);
+                    db.delete(Table.EVENTS.getName(), "_id = ?", new String[] { String.valueOf(rowId) });
                 }
             }
 
@@ -146,36 +333,130 @@ import org.json.JSONObject;
                     final JSONObject j = new JSONObject(peopleCursor.getString(peopleCursor.getColumnIndex(KEY_DATA)));
                     String token = j.getString("$token");
                     rowId = peopleCursor.getInt(peopleCursor.getColumnIndex("_id"));
-                    db.execSQL("UPDATE " + Table.PEOPLE.getName() + " SET " + KEY_TOKEN + " = '" + token + "' WHERE _id = " + rowId);
+                    db.execSQL("UPDATE " + Table.PEOPLE.getName() + " SET " + KEY_TOKEN + " = ? WHERE _id = ?", new Object[] { token, rowId });
                 } catch (final JSONException e) {
-                    db.delete(Table.PEOPLE.getName(), "_id = " + rowId, null);
+                    db.delete(Table.PEOPLE.getName(), "_id = ?", new String[] { String.valueOf(rowId) });
                 }
             }
         }
 
+        // Only adds indexes, queued records are kept as they are
+        private void migrateTableFrom5To6(SQLiteDatabase db) {
+            db.execSQL(EVENTS_TOKEN_INDEX);
+            db.execSQL(PEOPLE_TOKEN_INDEX);
+        }
+
+        // Existing records stay JSON text, which is encoding 0
+        private void migrateTableFrom6To7(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + Table.EVENTS.getName() + " ADD COLUMN " + KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL("ALTER TABLE " + Table.PEOPLE.getName() + " ADD COLUMN " + KEY_ENCODING + " INTEGER NOT NULL DEFAULT 0");
+            db.execSQL(CREATE_DICTIONARIES_TABLE);
+        }
+
         private final File mDatabaseFile;
         private final MPConfig mConfig;
     }
 
     public MPDbAdapter(Context context, final String token) {
-        this(context, DATABASE_NAME + "_" + token.hashCode(), token);
+        this(context, legacyDatabaseName(token), token);
     }
 
     public MPDbAdapter(Context context, String dbName, final String token) {
+        mContext = context;
         mDb = new MPDatabaseHelper(context, dbName, token);
     }
 
+    /**
+     * Returns the adapter shared by every project token. Records are kept apart by their token
+     * column, so all projects share one database file. Nothing is opened or read until the first
+     * operation, so this can be called from any thread.
+     */
     public static MPDbAdapter getInstance(Context context, final String token) {
-        synchronized (sInstances) {
-            final Context appContext = context.getApplicationContext();
-            MPDbAdapter ret;
-            if (!sInstances.containsKey(token)) {
-                ret = new MPDbAdapter(appContext, token);
-                sInstances.put(token, ret);
-            } else {
-                ret = sInstances.get(token);
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                sInstance = new MPDbAdapter(context.getApplicationContext(), DATABASE_NAME, token);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Whether the shared database, or a database left for token by an earlier version of the
+     * library, exists. Only looks for the files, without opening them.
+     */
+    public static boolean databaseExists(Context context, String token) {
+        return context.getDatabasePath(DATABASE_NAME).exists() || context.getDatabasePath(legacyDatabaseName(token)).exists();
+    }
+
+    // Before the database was shared, each token had a file of its own
+    private static String legacyDatabaseName(String token) {
+        return DATABASE_NAME + "_" + token.hashCode();
+    }
+
+    /**
+     * Moves the records left in token's own database by earlier versions of the library into
+     * this one. Once the records of a token are imported, or there were none, later calls do
+     * nothing; after a failure the next call tries again. Copies the whole file, so it must be
+     * called from the worker thread.
+     */
+    public void importLegacyDatabase(Context context, String token) {
+        synchronized (sInstanceLock) {
+            if (sImportedTokens.contains(token)) {
+                return;
+            }
+        }
+
+        final String legacyName = legacyDatabaseName(token);
+        if (!context.getDatabasePath(legacyName).exists()) {
+            markImported(token);
+            return;
+        }
+
+        // Opening the file through a helper brings an old schema up to date before copying
+        final MPDatabaseHelper legacy = new MPDatabaseHelper(context, legacyName, token);
+        boolean imported = false;
+        synchronized (this) {
+            Cursor c = null;
+            try {
+                final SQLiteDatabase db = mDb.getWritableDatabase();
+                final SQLiteDatabase legacyDb = legacy.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    for (final Table table : Table.values()) {
+                        c = legacyDb.rawQuery("SELECT " + KEY_DATA + ", " + KEY_CREATED_AT + ", " + KEY_AUTOMATIC_DATA + ", " +
+                                KEY_TOKEN + " FROM " + table.getName() + " ORDER BY _id ASC", null);
+                        while (c.moveToNext()) {
+                            insertRecord(db, table, c.getString(0), c.getLong(1), c.getInt(2) != 0, c.getString(3));
+                        }
+                        c.close();
+                        c = null;
+                    }
+                    db.setTransactionSuccessful();
+                    imported = true;
+                } finally {
+                    db.endTransaction();
+                }
+            } catch (final SQLiteException e) {
+                MPLog.e(LOGTAG, "Could not import records from " + legacyName + ", they will stay there", e);
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+                legacy.close();
+                invalidateQueueDepths();
+                releaseDatabase();
             }
-            return ret;
+        }
+        if (imported) {
+            MPLog.v(LOGTAG, "Imported the records of " + legacyName + " into the shared database");
+            legacy.deleteDatabase();
+            markImported(token);
+        }
+    }
+
+    private static void markImported(String token) {
+        synchronized (sInstanceLock) {
+            sImportedTokens.add(token);
         }
     }
 
@@ -190,7 +471,7 @@ import org.json.JSONObject;
      * @return the number of rows in the table, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR
      * on failure
      */
-    public int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
+    public synchronized int addJSON(JSONObject j, String token, Table table, boolean isAutomaticRecord) {
         // we are aware of the race condition here, but what can we do..?
         if (!this.belowMemThreshold()) {
             MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
@@ -199,97 +480,160 @@ import org.json.JSONObject;
 
         final String tableName = table.getName();
 
-        Cursor c = null;
         int count = DB_UPDATE_ERROR;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
 
-            final ContentValues cv = new ContentValues();
-            cv.put(KEY_DATA, j.toString());
-            cv.put(KEY_CREATED_AT, System.currentTimeMillis());
-            cv.put(KEY_AUTOMATIC_DATA, isAutomaticRecord);
-            cv.put(KEY_TOKEN, token);
-            db.insert(tableName, null, cv);
+            if (insertRecord(db, table, j.toString(), System.currentTimeMillis(), isAutomaticRecord, token) != -1) {
+                adjustQueueDepth(table, token, isAutomaticRecord, 1);
+            }
 
-            c = db.rawQuery("SELECT COUNT(*) FROM " + tableName + " WHERE token='" + token + "'", null);
-            c.moveToFirst();
-            count = c.getInt(0);
+            count = getQueueDepth(db, table, token, true);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not add Mixpanel data to table " + tableName + ". Discarding the project's records.", e);
+            discardRecords(token);
+        } finally {
+            releaseDatabase();
+        }
+        return count;
+    }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            if (c != null) {
-                c.close();
-                c = null;
+    public int addJSONBatch(List<Record> records) {
+        return append(records);
+    }
+
+    /**
+     * Adds a batch of JSON records to the SQLiteDatabase inside of a single transaction,
+     * so a burst of events costs one open, one commit and one close instead of one per record.
+     *
+     * @param records the records to insert, in the order they should be sent
+     * @return the largest number of rows held for any table and token touched by the batch,
+     * DB_UNDEFINED_CODE if the batch is empty, or DB_OUT_OF_MEMORY_ERROR/DB_UPDATE_ERROR on failure
+     */
+    @Override
+    public synchronized int append(List<Record> records) {
+        if (records.isEmpty()) {
+            return DB_UNDEFINED_CODE;
+        }
+
+        if (!this.belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        int count = DB_UPDATE_ERROR;
+
+        try {
+            final SQLiteDatabase db = mDb.getWritableDatabase();
+            final long createdAt = System.currentTimeMillis();
+            final List<Record> inserted = new ArrayList<>(records.size());
+
+            db.beginTransaction();
+            try {
+                for (final Record record : records) {
+                    final long rowId = insertRecord(db, record.getTable(), record.getSerializedData(),
+                            createdAt, record.isAutomatic(), record.getToken());
+                    if (rowId != -1) {
+                        inserted.add(record);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
             }
-            mDb.deleteDatabase();
-        } finally {
-            if (c != null) {
-                c.close();
+
+            for (final Record record : inserted) {
+                adjustQueueDepth(record.getTable(), record.getToken(), record.isAutomatic(), 1);
             }
-            mDb.close();
+            int maxCount = 0;
+            for (final Record record : records) {
+                maxCount = Math.max(maxCount, getQueueDepth(db, record.getTable(), record.getToken(), true));
+            }
+            count = maxCount;
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not add a batch of " + records.size() + " Mixpanel records. Discarding the projects' records.", e);
+            final Set<String> tokens = new HashSet<>();
+            for (final Record record : records) {
+                if (null != record.getToken() && tokens.add(record.getToken())) {
+                    discardRecords(record.getToken());
+                }
+            }
+        } finally {
+            releaseDatabase();
         }
         return count;
     }
 
+    public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
+        ack(table, token, Long.parseLong(last_id), includeAutomaticEvents);
+    }
+
     /**
-     * Removes events with an _id <= last_id from table
+     * Removes events with an _id <= lastId from table
      *
-     * @param last_id the last id to delete
      * @param table the table to remove events from, either "events" or "people"
+     * @param lastId the last id to delete
      * @param includeAutomaticEvents whether or not automatic events should be included in the
      * cleanup
      */
-    public void cleanupEvents(String last_id, Table table, String token, boolean includeAutomaticEvents) {
+    @Override
+    public synchronized void ack(Table table, String token, long lastId, boolean includeAutomaticEvents) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            StringBuffer deleteQuery = new StringBuffer("_id <= " + last_id + " AND " + KEY_TOKEN + " = '" + token + "'");
+            final SQLiteStatement delete = getStatement(db, table, STATEMENT_DELETE_SENT);
+            delete.bindString(1, token);
+            delete.bindLong(3, lastId);
 
-            if (!includeAutomaticEvents) {
-                deleteQuery.append(" AND " + KEY_AUTOMATIC_DATA + "=0");
+            // Automatic and regular rows are deleted separately so both queue depths stay exact
+            delete.bindLong(2, 0);
+            int deleted = delete.executeUpdateDelete();
+            adjustQueueDepth(table, token, false, -deleted);
+            if (includeAutomaticEvents) {
+                delete.bindLong(2, 1);
+                final int deletedAutomatic = delete.executeUpdateDelete();
+                adjustQueueDepth(table, token, true, -deletedAutomatic);
+                deleted += deletedAutomatic;
+            }
+            if (deleted > 0) {
+                mDb.checkpoint(db);
             }
-            db.delete(tableName, deleteQuery.toString(), null);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + tableName + ". Discarding the project's records.", e);
+            discardRecords(token);
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
+    public void cleanupEvents(long time, Table table) {
+        expire(table, time);
+    }
+
     /**
      * Removes events before time.
      *
-     * @param time the unix epoch in milliseconds to remove events before
      * @param table the table to remove events from, either "events" or "people"
+     * @param time the unix epoch in milliseconds to remove events before
      */
-    public void cleanupEvents(long time, Table table) {
+    @Override
+    public synchronized void expire(Table table, long time) {
         final String tableName = table.getName();
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_CREATED_AT + " <= " + time, null);
+            if (db.delete(tableName, KEY_CREATED_AT + " <= ?", new String[] { String.valueOf(time) }) > 0) {
+                // Expired rows can belong to any token, count again on the next read
+                invalidateQueueDepths();
+                mDb.checkpoint(db);
+            }
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ". Re-initializing database.", e);
-
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+            // The records can belong to any project, so they are left for the next attempt
+            MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + tableName + ".", e);
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
@@ -298,6 +642,7 @@ import org.json.JSONObject;
      *
      * @param token token of the project you want to remove automatic events from
      */
+    @Override
     public synchronized void cleanupAutomaticEvents(String token) {
         cleanupAutomaticEvents(Table.EVENTS, token);
         cleanupAutomaticEvents(Table.PEOPLE, token);
@@ -308,22 +653,368 @@ import org.json.JSONObject;
 
         try {
             final SQLiteDatabase db = mDb.getWritableDatabase();
-            db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = '" + token + "'", null);
+            final int deleted = db.delete(tableName, KEY_AUTOMATIC_DATA + " = 1 AND " + KEY_TOKEN + " = ?", new String[] { token });
+            adjustQueueDepth(table, token, true, -deleted);
         } catch (final SQLiteException e) {
-            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Re-initializing database.", e);
+            MPLog.e(LOGTAG, "Could not clean automatic Mixpanel records from " + tableName + ". Discarding the project's records.", e);
+            discardRecords(token);
+        } finally {
+            releaseDatabase();
+        }
+    }
 
-            // We assume that in general, the results of a SQL exception are
-            // unrecoverable, and could be associated with an oversized or
-            // otherwise unusable DB. Better to bomb it and get back on track
-            // than to leave it junked up (and maybe filling up the disk.)
-            mDb.deleteDatabase();
+    /**
+     * Removes every record and dictionary of a project. The records of other projects, the
+     * connection and the database file are left alone.
+     *
+     * @param token token of the project whose records are removed
+     */
+    @Override
+    public synchronized void deleteRecords(String token) {
+        try {
+            deleteRecords(mDb.getWritableDatabase(), token);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not remove the Mixpanel records of a project", e);
         } finally {
-            mDb.close();
+            releaseDatabase();
         }
     }
 
-    public void deleteDB() {
+    private void deleteRecords(SQLiteDatabase db, String token) {
+        final String[] args = new String[] { token };
+        for (final Table table : Table.values()) {
+            db.delete(table.getName(), KEY_TOKEN + " = ?", args);
+        }
+        db.delete(DICTIONARIES_TABLE, KEY_TOKEN + " = ?", args);
+        invalidateQueueDepths();
+        forgetDictionaries();
+        mDb.checkpoint(db);
+    }
+
+    /**
+     * Called when an operation for a project failed with a SQLiteException. We assume the
+     * project's records can't be trusted after that, and could be oversized or filling up the
+     * disk, so they are dropped. Other projects share the file, so the whole database is only
+     * deleted if even that fails, in which case the file itself is unusable.
+     */
+    private void discardRecords(String token) {
+        try {
+            deleteRecords(mDb.getWritableDatabase(), token);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not discard the Mixpanel records of a project. Re-initializing database.", e);
+            resetDatabase();
+        }
+    }
+
+    /**
+     * Deletes the database file, with the records of every project.
+     */
+    @Override
+    public synchronized void deleteDB() {
+        resetDatabase();
+    }
+
+    private void resetDatabase() {
+        closeStatements();
         mDb.deleteDatabase();
+        invalidateQueueDepths();
+        forgetDictionaries();
+        releaseCompressor();
+    }
+
+    /**
+     * In persistent mode the database is still opened lazily by the first operation that needs it,
+     * but it stays open afterwards until {@link #close()} is called, instead of being closed at the
+     * end of every operation.
+     *
+     * @param keepConnectionOpen true to keep the connection open between operations
+     */
+    public void setKeepConnectionOpen(boolean keepConnectionOpen) {
+        mKeepConnectionOpen = keepConnectionOpen;
+    }
+
+    /**
+     * With compact encoding, records are stored deflated against a dictionary trained on earlier
+     * records of the same table and project, instead of as JSON text. They are turned back into
+     * JSON text when they are read for upload. Records stored either way can always be read.
+     *
+     * @param compactEncoding true to compress records written from now on
+     */
+    public void setCompactEncoding(boolean compactEncoding) {
+        mCompactEncoding = compactEncoding;
+    }
+
+    /**
+     * Closes the connection to the database, if open. The next operation will reopen it.
+     */
+    @Override
+    public synchronized void close() {
+        closeStatements();
+        mDb.close();
+        releaseCompressor();
+    }
+
+    private void releaseDatabase() {
+        if (!mKeepConnectionOpen) {
+            closeStatements();
+            mDb.close();
+        }
+    }
+
+    private long insertRecord(SQLiteDatabase db, Table table, String data, long createdAt, boolean isAutomatic, String token) {
+        if (null == token) {
+            MPLog.e(LOGTAG, "Mixpanel record has no project token, will not store it");
+            return -1;
+        }
+
+        byte[] compressed = null;
+        long dictionaryId = 0;
+        if (mCompactEncoding) {
+            dictionaryId = getActiveDictionary(db, table, token, data);
+            compressed = getCompressor().compress(data, mDictionaries.get(dictionaryId));
+        }
+
+        final SQLiteStatement insert = getStatement(db, table, STATEMENT_INSERT);
+        if (null != compressed) {
+            insert.bindBlob(1, compressed);
+            insert.bindLong(5, dictionaryId);
+        } else {
+            insert.bindString(1, data);
+            insert.bindLong(5, 0);
+        }
+        insert.bindLong(2, createdAt);
+        insert.bindLong(3, isAutomatic ? 1 : 0);
+        insert.bindString(4, token);
+        return insert.executeInsert();
+    }
+
+    private RecordCompressor getCompressor() {
+        if (null == mCompressor) {
+            mCompressor = new RecordCompressor();
+        }
+        return mCompressor;
+    }
+
+    // Frees the compressor's native zlib state now rather than in its finalizer. The next record
+    // that needs it gets a new one.
+    private void releaseCompressor() {
+        if (null != mCompressor) {
+            mCompressor.release();
+            mCompressor = null;
+        }
+    }
+
+    /**
+     * Returns the _id of the dictionary to compress new records of table and token with. A new
+     * dictionary is trained on sample, the record about to be written, if there isn't one yet
+     * or the current one has compressed enough records that it may have gone stale.
+     */
+    private long getActiveDictionary(SQLiteDatabase db, Table table, String token, String sample) {
+        final String key = table.getName() + ":" + token;
+        Long dictionaryId = mActiveDictionaries.get(key);
+        if (null == dictionaryId) {
+            dictionaryId = loadLatestDictionary(db, table, token);
+            mActiveDictionaries.put(key, dictionaryId);
+            mDictionaryUses.put(key, 0);
+        }
+
+        final int uses = mDictionaryUses.get(key);
+        if (dictionaryId > 0 && uses < DICTIONARY_RETRAIN_RECORDS) {
+            mDictionaryUses.put(key, uses + 1);
+            return dictionaryId;
+        }
+
+        final byte[] dictionary = RecordCompressor.trainDictionary(sample);
+        final ContentValues values = new ContentValues();
+        values.put(KEY_TABLE_NAME, table.getName());
+        values.put(KEY_TOKEN, token);
+        values.put(KEY_DATA, dictionary);
+        final long newId = db.insertOrThrow(DICTIONARIES_TABLE, null, values);
+        mDictionaries.put(newId, dictionary);
+        mActiveDictionaries.put(key, newId);
+        mDictionaryUses.put(key, 1);
+
+        // Older dictionaries are only kept while records compressed with them are still queued
+        db.delete(DICTIONARIES_TABLE, KEY_TABLE_NAME + " = ? AND " + KEY_TOKEN + " = ? AND _id != ? AND _id NOT IN (SELECT " +
+                KEY_ENCODING + " FROM " + table.getName() + " WHERE " + KEY_TOKEN + " = ?)",
+                new String[] { table.getName(), token, String.valueOf(newId), token });
+        return newId;
+    }
+
+    // Returns 0 if table and token have no dictionary yet
+    private long loadLatestDictionary(SQLiteDatabase db, Table table, String token) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT _id, " + KEY_DATA + " FROM " + DICTIONARIES_TABLE + " WHERE " + KEY_TABLE_NAME + " = ? AND " +
+                    KEY_TOKEN + " = ? ORDER BY _id DESC LIMIT 1", new String[] { table.getName(), token });
+            if (!c.moveToFirst()) {
+                return 0;
+            }
+            final long dictionaryId = c.getLong(0);
+            mDictionaries.put(dictionaryId, c.getBlob(1));
+            return dictionaryId;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    // Returns null if the dictionary is gone, in which case its records can't be read
+    private byte[] getDictionary(SQLiteDatabase db, long dictionaryId) {
+        byte[] dictionary = mDictionaries.get(dictionaryId);
+        if (null != dictionary) {
+            return dictionary;
+        }
+        Cursor c = null;
+        try {
+            c = db.rawQuery("SELECT " + KEY_DATA + " FROM " + DICTIONARIES_TABLE + " WHERE _id = ?",
+                    new String[] { String.valueOf(dictionaryId) });
+            if (c.moveToFirst()) {
+                dictionary = c.getBlob(0);
+                mDictionaries.put(dictionaryId, dictionary);
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+        return dictionary;
+    }
+
+    private synchronized void forgetDictionaries() {
+        mDictionaries.clear();
+        mActiveDictionaries.clear();
+        mDictionaryUses.clear();
+    }
+
+    /**
+     * Copies the JSON text of the current row into mRowBuffer, decompressing it if needed.
+     *
+     * @return false if the row is compressed and can't be decompressed
+     */
+    private boolean readRow(SQLiteDatabase db, Cursor c, int dataColumn, int encodingColumn) {
+        final long dictionaryId = c.getLong(encodingColumn);
+        if (0 == dictionaryId) {
+            c.copyStringToBuffer(dataColumn, mRowBuffer);
+            return true;
+        }
+
+        final byte[] dictionary = getDictionary(db, dictionaryId);
+        if (null == dictionary) {
+            MPLog.e(LOGTAG, "Dictionary " + dictionaryId + " is missing, a compressed record can't be read");
+            return false;
+        }
+        final String record;
+        try {
+            record = getCompressor().decompress(c.getBlob(dataColumn), dictionary);
+        } catch (final DataFormatException e) {
+            MPLog.e(LOGTAG, "Compressed record is corrupt", e);
+            return false;
+        }
+        final int length = record.length();
+        if (null == mRowBuffer.data || mRowBuffer.data.length < length) {
+            mRowBuffer.data = new char[length];
+        }
+        record.getChars(0, length, mRowBuffer.data, 0);
+        mRowBuffer.sizeCopied = length;
+        return true;
+    }
+
+    private SQLiteStatement getStatement(SQLiteDatabase db, Table table, int kind) {
+        if (db != mStatementsDb) {
+            // The connection was reopened, statements compiled for the old one are useless
+            closeStatements();
+            mStatementsDb = db;
+        }
+
+        final int index = kind * TABLE_COUNT + table.ordinal();
+        SQLiteStatement statement = mStatements[index];
+        if (null == statement) {
+            statement = db.compileStatement(statementSql(kind, table));
+            mStatements[index] = statement;
+        } else {
+            statement.clearBindings();
+        }
+        return statement;
+    }
+
+    private void closeStatements() {
+        for (int i = 0; i < mStatements.length; i++) {
+            if (null != mStatements[i]) {
+                mStatements[i].close();
+                mStatements[i] = null;
+            }
+        }
+        mStatementsDb = null;
+    }
+
+    private static String statementSql(int kind, Table table) {
+        switch (kind) {
+            case STATEMENT_INSERT:
+                return "INSERT INTO " + table.getName() + " (" + KEY_DATA + ", " + KEY_CREATED_AT + ", " +
+                        KEY_AUTOMATIC_DATA + ", " + KEY_TOKEN + ", " + KEY_ENCODING + ") VALUES (?, ?, ?, ?, ?)";
+            case STATEMENT_DELETE_SENT:
+                return "DELETE FROM " + table.getName() + " WHERE " + KEY_TOKEN + " = ? AND " +
+                        KEY_AUTOMATIC_DATA + " = ? AND _id <= ?";
+            default:
+                throw new IllegalArgumentException("Unknown statement kind " + kind);
+        }
+    }
+
+    private static String queueDepthKey(Table table, String token, boolean isAutomatic) {
+        return table.getName() + (isAutomatic ? ":1:" : ":0:") + token;
+    }
+
+    private synchronized int getQueueDepth(SQLiteDatabase db, Table table, String token, boolean includeAutomatic) {
+        if (!mQueueDepthsSeeded) {
+            seedQueueDepths(db);
+        }
+
+        final Integer regular = mQueueDepths.get(queueDepthKey(table, token, false));
+        int depth = regular == null ? 0 : regular;
+        if (includeAutomatic) {
+            final Integer automatic = mQueueDepths.get(queueDepthKey(table, token, true));
+            depth += automatic == null ? 0 : automatic;
+        }
+        return depth;
+    }
+
+    private synchronized void adjustQueueDepth(Table table, String token, boolean isAutomatic, int delta) {
+        if (!mQueueDepthsSeeded || delta == 0) {
+            // The seeding scan will see this change
+            return;
+        }
+
+        final String key = queueDepthKey(table, token, isAutomatic);
+        final Integer depth = mQueueDepths.get(key);
+        mQueueDepths.put(key, Math.max(0, (depth == null ? 0 : depth) + delta));
+    }
+
+    private synchronized void invalidateQueueDepths() {
+        mQueueDepths.clear();
+        mQueueDepthsSeeded = false;
+    }
+
+    private void seedQueueDepths(SQLiteDatabase db) {
+        mQueueDepths.clear();
+        for (final Table table : Table.values()) {
+            Cursor c = null;
+            try {
+                c = db.rawQuery("SELECT " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA + ", COUNT(*) FROM " + table.getName() +
+                        " GROUP BY " + KEY_TOKEN + ", " + KEY_AUTOMATIC_DATA, null);
+                while (c.moveToNext()) {
+                    final String key = queueDepthKey(table, c.getString(0), c.getInt(1) != 0);
+                    final Integer depth = mQueueDepths.get(key);
+                    mQueueDepths.put(key, (depth == null ? 0 : depth) + c.getInt(2));
+                }
+            } finally {
+                if (c != null) {
+                    c.close();
+                }
+            }
+        }
+        mQueueDepthsSeeded = true;
     }
 
     /**
@@ -338,56 +1029,92 @@ import org.json.JSONObject;
      * current number of events in the queue.
      */
     public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents) {
+        return generateDataString(table, token, includeAutomaticEvents, null);
+    }
+
+    /**
+     * Like {@link #generateDataString(Table, String, boolean)}, but only reads records newer than afterId.
+     * This lets the next batch be read while an earlier one, still in the database, is being uploaded.
+     *
+     * @param afterId the maximum ID of a batch that has already been read, or null to read from the oldest record
+     */
+    public String[] generateDataString(Table table, String token, boolean includeAutomaticEvents, String afterId) {
+        final Batch batch = peekBatch(table, token, includeAutomaticEvents, null == afterId ? NO_ID : Long.parseLong(afterId));
+        if (null == batch) {
+            return null;
+        }
+        return new String[] { String.valueOf(batch.getLastId()), batch.getData(), String.valueOf(batch.getDepth()) };
+    }
+
+    @Override
+    public synchronized Batch peekBatch(Table table, String token, boolean includeAutomaticEvents, long afterId) {
         Cursor c = null;
-        Cursor queueCountCursor = null;
         String data = null;
-        String last_id = null;
-        String queueCount = null;
+        long lastId = NO_ID;
+        int count = 0;
+        int queueCount = 0;
         final String tableName = table.getName();
         final SQLiteDatabase db = mDb.getReadableDatabase();
+        final MPConfig config = MPConfig.getInstance(mContext, token);
+        final String maxRecords = String.valueOf(config.getMaxRecordsPerRequest(table));
+        final String minId = String.valueOf(afterId);
+        final int maxRequestBytes = config.getMaxRequestBytes();
 
         try {
-            StringBuffer rawDataQuery = new StringBuffer("SELECT * FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            StringBuffer queueCountQuery = new StringBuffer("SELECT COUNT(*) FROM " + tableName + " WHERE " + KEY_TOKEN + " = '" + token + "' ");
-            if (!includeAutomaticEvents) {
-                rawDataQuery.append("AND " + KEY_AUTOMATIC_DATA + " = 0 ");
-                queueCountQuery.append(" AND " + KEY_AUTOMATIC_DATA + " = 0");
+            final String rawDataQuery;
+            final String[] rawDataArgs;
+            final String regularDataQuery = "SELECT _id, " + KEY_DATA + ", " + KEY_ENCODING + " FROM " + tableName + " WHERE " + KEY_TOKEN + " = ? AND " +
+                    KEY_AUTOMATIC_DATA + " = 0 AND _id > ? ORDER BY _id ASC LIMIT ?";
+            if (includeAutomaticEvents) {
+                // Each half walks events_token_idx/people_token_idx in order, so at most twice the limit is sorted
+                final String automaticDataQuery = "SELECT _id, " + KEY_DATA + ", " + KEY_ENCODING + " FROM " + tableName + " WHERE " + KEY_TOKEN + " = ? AND " +
+                        KEY_AUTOMATIC_DATA + " = 1 AND _id > ? ORDER BY _id ASC LIMIT ?";
+                rawDataQuery = "SELECT * FROM (" + regularDataQuery + ") UNION ALL SELECT * FROM (" + automaticDataQuery +
+                        ") ORDER BY _id ASC LIMIT ?";
+                rawDataArgs = new String[] { token, minId, maxRecords, token, minId, maxRecords, maxRecords };
+            } else {
+                rawDataQuery = regularDataQuery;
+                rawDataArgs = new String[] { token, minId, maxRecords };
             }
+            // Bound arguments keep the SQL text constant, so the connection's statement cache can reuse the compiled query
+            c = db.rawQuery(rawDataQuery, rawDataArgs);
 
-            rawDataQuery.append("ORDER BY " + KEY_CREATED_AT + " ASC LIMIT 50");
-            c = db.rawQuery(rawDataQuery.toString(), null);
-
-            queueCountCursor = db.rawQuery(queueCountQuery.toString(), null);
-            queueCountCursor.moveToFirst();
-            queueCount = String.valueOf(queueCountCursor.getInt(0));
-
-            final JSONArray arr = new JSONArray();
+            queueCount = getQueueDepth(db, table, token, includeAutomaticEvents);
 
+            // Stored payloads are already serialized JSON, so they are copied into the body as they
+            // are instead of being parsed and written out again. Compactly encoded ones are only
+            // decompressed back to JSON text here.
+            final int idColumn = c.getColumnIndex("_id");
+            final int dataColumn = c.getColumnIndex(KEY_DATA);
+            final int encodingColumn = c.getColumnIndex(KEY_ENCODING);
+            final StringBuilder sb = mBatchBuilder;
+            sb.setLength(0);
+            int bytes = 0;
             while (c.moveToNext()) {
-                if (c.isLast()) {
-                    last_id = c.getString(c.getColumnIndex("_id"));
+                final boolean readable = readRow(db, c, dataColumn, encodingColumn);
+                final int recordBytes = readable ? StringUtils.utf8Length(mRowBuffer.data, 0, mRowBuffer.sizeCopied) : 0;
+                // The batch always takes its first record, so a single oversized record can't stall the queue
+                if (readable && NO_ID != lastId && bytes + 1 + recordBytes > maxRequestBytes) {
+                    break;
                 }
-                try {
-                    final JSONObject j = new JSONObject(c.getString(c.getColumnIndex(KEY_DATA)));
-                    arr.put(j);
-                } catch (final JSONException e) {
-                    // Ignore this object
+                lastId = c.getLong(idColumn);
+                if (!readable) {
+                    continue;
                 }
-            }
-
-            final StringBuilder sb = new StringBuilder();
-            for (int i = 0; i < arr.length(); i++) {
-                try {
-                    final String event = arr.get(i).toString();
-                    sb.append(event);
-                    if (i != arr.length() - 1) {
-                        sb.append("\n");
-                    }
-                } catch (JSONException e) {
+                if (!isJSONObject(mRowBuffer.data, mRowBuffer.sizeCopied)) {
+                    // Ignore this object
                     if (MPConfig.DEBUG) {
-                        MPLog.w(LOGTAG, e.getMessage(), e);
+                        MPLog.w(LOGTAG, "Skipping malformed record " + new String(mRowBuffer.data, 0, mRowBuffer.sizeCopied));
                     }
+                    continue;
                 }
+                if (sb.length() > 0) {
+                    sb.append('\n');
+                    bytes++;
+                }
+                sb.append(mRowBuffer.data, 0, mRowBuffer.sizeCopied);
+                bytes += recordBytes;
+                count++;
             }
             data = sb.toString();
             if (MPConfig.DEBUG) {
@@ -400,25 +1127,47 @@ import org.json.JSONObject;
             // let things ride in hopes the issue clears up.
             // (A bit more likely, since we're opening the DB for read and not write.)
             // A corrupted or disk-full DB will be cleaned up on the next write or clear call.
-            last_id = null;
+            lastId = NO_ID;
             data = null;
         } finally {
-            mDb.close();
+            releaseDatabase();
             if (c != null) {
                 c.close();
             }
-            if (queueCountCursor != null) {
-                queueCountCursor.close();
-            }
         }
 
-        if (last_id != null && data != null) {
-            final String[] ret = { last_id, data, queueCount };
-            return ret;
+        if (lastId != NO_ID && data != null) {
+            return new Batch(lastId, data, count, queueCount);
         }
         return null;
     }
 
+    @Override
+    public synchronized int depth(Table table, String token, boolean includeAutomaticEvents) {
+        try {
+            return getQueueDepth(mDb.getReadableDatabase(), table, token, includeAutomaticEvents);
+        } catch (final SQLiteException e) {
+            MPLog.e(LOGTAG, "Could not count Mixpanel records in " + table.getName() + ".", e);
+            return 0;
+        } finally {
+            releaseDatabase();
+        }
+    }
+
+    // A cheap structural check in place of a full parse: the record has to look like a JSON object
+    private static boolean isJSONObject(char[] data, int length) {
+        int start = 0;
+        int end = length - 1;
+        while (start <= end && Character.isWhitespace(data[start])) {
+            start++;
+        }
+        while (end >= start && Character.isWhitespace(data[end])) {
+            end--;
+        }
+        return start < end && data[start] == '{' && data[end] == '}';
+    }
+
+    // The database file, which only exists once something has been stored
     public File getDatabaseFile() {
         return mDb.mDatabaseFile;
     }
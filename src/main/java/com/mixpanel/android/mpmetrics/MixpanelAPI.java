@@ -303,7 +303,7 @@ public class MixpanelAPI {
 
         mMessages = getAnalyticsMessages();
 
-        if (mPersistentIdentity.isFirstLaunch(MPDbAdapter.getInstance(mContext, mToken).getDatabaseFile().exists())) {
+        if (mPersistentIdentity.isFirstLaunch(EventStores.exists(mContext, mToken))) {
             mPersistentIdentity.setHasLaunched();
         }
 
@@ -542,6 +542,32 @@ public class MixpanelAPI {
         track(eventName, properties, false);
     }
 
+    /**
+     * Track an event built with an {@link EventBuilder}.
+     *
+     * <p>Tracks the same event as {@link #track(String, JSONObject)} would, but the properties
+     * are kept in primitive arrays and written straight to storage on the Mixpanel worker thread,
+     * without creating any JSONObjects. Use this for events you track at a high rate.
+     *
+     * <p>Mixpanel takes ownership of the builder and recycles it, so it must not be used after
+     * this call.
+     *
+     * @param event the event to send, obtained with {@link EventBuilder#obtain(String)}
+     */
+    public void trackEvent(EventBuilder event) {
+        if (null == event) {
+            return;
+        }
+        final String eventName = event.getEventName();
+        final long timeMillis = System.currentTimeMillis();
+        final DeferredEventProperties eventProperties = captureEventProperties(eventName, null, timeMillis);
+        mMessages.eventsMessage(new AnalyticsMessages.EventDescription(event, eventProperties, timeMillis, mToken));
+
+        if (null != mTrackingDebug) {
+            mTrackingDebug.reportTrack(eventName);
+        }
+    }
+
     /**
      * Equivalent to {@link #track(String, JSONObject)} with a null argument for properties.
      * Consider adding properties to your tracking to get the best insights and experience from
@@ -2036,6 +2062,11 @@ public class MixpanelAPI {
             return;
         }
 
+        if (mConfig.getDeferEventConstruction()) {
+            trackDeferred(eventName, properties, isAutomaticEvent);
+            return;
+        }
+
         final Long eventBegin;
         synchronized (mEventTimings) {
             eventBegin = mEventTimings.get(eventName);
@@ -2086,6 +2117,110 @@ public class MixpanelAPI {
         }
     }
 
+    // Captures only what can change after track() returns, and leaves building the event to the worker thread
+    private void trackDeferred(String eventName, JSONObject properties, boolean isAutomaticEvent) {
+        final long timeMillis = System.currentTimeMillis();
+        final DeferredEventProperties eventProperties = captureEventProperties(eventName, properties, timeMillis);
+        mMessages.eventsMessage(new AnalyticsMessages.EventDescription(eventName, eventProperties, timeMillis, mToken, isAutomaticEvent));
+
+        if (null != mTrackingDebug) {
+            mTrackingDebug.reportTrack(eventName);
+        }
+    }
+
+    private DeferredEventProperties captureEventProperties(String eventName, JSONObject properties, long timeMillis) {
+        final Long eventBegin;
+        synchronized (mEventTimings) {
+            eventBegin = mEventTimings.remove(eventName);
+        }
+        return new DeferredEventProperties(mPersistentIdentity, mEventTimings, eventName, properties,
+                mPersistentIdentity.getSuperPropertiesSnapshot(), getDistinctId(), timeMillis, eventBegin);
+    }
+
+    /**
+     * Builds the properties of a deferred event on the worker thread the same way track() does,
+     * merging the super properties that were registered when the event was tracked.
+     */
+    private static class DeferredEventProperties implements AnalyticsMessages.EventPropertiesBuilder {
+        public DeferredEventProperties(PersistentIdentity persistentIdentity, Map<String, Long> eventTimings,
+                String eventName, JSONObject properties, JSONObject superProperties, String distinctId,
+                long timeMillis, Long eventBegin) {
+            mPersistentIdentity = persistentIdentity;
+            mEventTimings = eventTimings;
+            mEventName = eventName;
+            mProperties = properties;
+            mSuperProperties = superProperties;
+            mDistinctId = distinctId;
+            mTimeMillis = timeMillis;
+            mEventBegin = eventBegin;
+        }
+
+        @Override
+        public JSONObject buildProperties() throws JSONException {
+            removeStoredTimeEvent();
+
+            final JSONObject messageProps = new JSONObject();
+
+            final Map<String, String> referrerProperties = mPersistentIdentity.getReferrerProperties();
+            for (final Map.Entry<String, String> entry : referrerProperties.entrySet()) {
+                messageProps.put(entry.getKey(), entry.getValue());
+            }
+
+            PersistentIdentity.addSuperPropertiesToObject(messageProps, mSuperProperties);
+
+            messageProps.put("distinct_id", mDistinctId);
+
+            if (null != mEventBegin) {
+                final double secondsElapsed = (mTimeMillis - mEventBegin) / 1000.0;
+                messageProps.put("$duration", secondsElapsed);
+            }
+
+            if (null != mProperties) {
+                final Iterator<String> iterator = mProperties.keys();
+                while (iterator.hasNext()) {
+                    final String key = iterator.next();
+                    messageProps.put(key, mProperties.get(key));
+                }
+            }
+            return messageProps;
+        }
+
+        @Override
+        public void addDefaults(EventBuilder eventBuilder) {
+            removeStoredTimeEvent();
+
+            // Highest precedence first, since defaults never replace a property that is already there
+            if (!eventBuilder.has("distinct_id")) {
+                eventBuilder.putString("distinct_id", mDistinctId);
+            }
+            if (null != mEventBegin && !eventBuilder.has("$duration")) {
+                eventBuilder.putDouble("$duration", (mTimeMillis - mEventBegin) / 1000.0);
+            }
+            eventBuilder.putDefaults(mSuperProperties);
+            eventBuilder.putDefaults(mPersistentIdentity.getReferrerProperties());
+        }
+
+        private void removeStoredTimeEvent() {
+            if (null != mEventBegin) {
+                synchronized (mEventTimings) {
+                    // Leave the stored timing alone if the event was timed again since
+                    if (!mEventTimings.containsKey(mEventName)) {
+                        mPersistentIdentity.removeTimeEvent(mEventName);
+                    }
+                }
+            }
+        }
+
+        private final PersistentIdentity mPersistentIdentity;
+        private final Map<String, Long> mEventTimings;
+        private final String mEventName;
+        private final JSONObject mProperties;
+        private final JSONObject mSuperProperties; // An immutable snapshot, shared with PersistentIdentity
+        private final String mDistinctId;
+        private final long mTimeMillis;
+        private final Long mEventBegin;
+    }
+
     private void recordPeopleMessage(JSONObject message) {
         if (message.has("$distinct_id")) {
             mMessages.peopleMessage(new AnalyticsMessages.PeopleDescription(message, mToken));
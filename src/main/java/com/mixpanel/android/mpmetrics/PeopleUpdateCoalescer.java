@@ -0,0 +1,211 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Merges people updates of the same profile that can be sent as one, so fewer records are
+ * uploaded without changing the profile Mixpanel ends up with.
+ *
+ * Only $set, $set_once and $add updates are merged, and only with the same operation on the same
+ * $distinct_id and $token. A later $set replaces values of an earlier one, an earlier $set_once
+ * wins over a later one, and $add amounts are summed. The merged update takes the later $time.
+ * Updates with any other operation, more than one operation, or extra fields such as $ip or
+ * $ignore_time are left as they are.
+ *
+ * Mixpanel applies a profile's updates in order, so an update can only be merged into an earlier
+ * one if no update of the same profile between them touches any of its properties.
+ */
+/* package */ class PeopleUpdateCoalescer {
+
+    /**
+     * Merges each mergeable update into the latest earlier update of the same profile that it can be
+     * merged with, as long as no update in between touches its properties. Updates are kept in order,
+     * a merged update takes the place of the earlier one. The list and its updates aren't changed.
+     */
+    public static List<JSONObject> coalesce(List<JSONObject> updates) {
+        final List<JSONObject> coalesced = new ArrayList<>(updates.size());
+        for (final JSONObject update : updates) {
+            final String operation = getOperation(update);
+            final JSONObject values = isMergeable(operation) ? update.optJSONObject(operation) : null;
+            boolean merged = false;
+            if (null != values) {
+                for (int i = coalesced.size() - 1; i >= 0; i--) {
+                    final JSONObject earlier = coalesced.get(i);
+                    if (!sameProfile(earlier, update)) {
+                        continue;
+                    }
+                    if (canMerge(earlier, update)) {
+                        coalesced.set(i, merge(earlier, update));
+                        merged = true;
+                        break;
+                    }
+                    if (touchesAny(earlier, values)) {
+                        break;
+                    }
+                }
+            }
+            if (!merged) {
+                coalesced.add(update);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * @return the update's only operation, such as "$set", or null if it has any other fields
+     * than the operation, $token, $distinct_id and $time
+     */
+    /* package */ static String getOperation(JSONObject update) {
+        String operation = null;
+        final Iterator<String> keys = update.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            if (KEY_TOKEN.equals(key) || KEY_DISTINCT_ID.equals(key) || KEY_TIME.equals(key)) {
+                continue;
+            }
+            if (null != operation) {
+                return null;
+            }
+            operation = key;
+        }
+        return operation;
+    }
+
+    /* package */ static boolean canMerge(JSONObject earlier, JSONObject later) {
+        final String operation = getOperation(earlier);
+        if (!isMergeable(operation) || !operation.equals(getOperation(later))) {
+            return false;
+        }
+        return sameProfile(earlier, later) &&
+                hasMergeableValues(operation, earlier.optJSONObject(operation)) &&
+                hasMergeableValues(operation, later.optJSONObject(operation));
+    }
+
+    /**
+     * Returns a new update with the effect of earlier followed by later. Neither is changed.
+     * Only call this for updates that {@link #canMerge(JSONObject, JSONObject)} accepts.
+     */
+    /* package */ static JSONObject merge(JSONObject earlier, JSONObject later) {
+        final String operation = getOperation(earlier);
+        try {
+            final JSONObject values = copy(earlier.getJSONObject(operation));
+            final JSONObject laterValues = later.getJSONObject(operation);
+            final Iterator<String> keys = laterValues.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                final Object value = laterValues.get(key);
+                if (OPERATION_SET.equals(operation)) {
+                    values.put(key, value);
+                } else if (OPERATION_SET_ONCE.equals(operation)) {
+                    if (!values.has(key)) {
+                        values.put(key, value);
+                    }
+                } else {
+                    values.put(key, add((Number) values.opt(key), (Number) value));
+                }
+            }
+
+            final JSONObject merged = copy(earlier);
+            merged.put(operation, values);
+            if (later.has(KEY_TIME)) {
+                merged.put(KEY_TIME, Math.max(earlier.optLong(KEY_TIME), later.getLong(KEY_TIME)));
+            }
+            return merged;
+        } catch (final JSONException e) {
+            throw new IllegalArgumentException("Can't merge people updates " + earlier + " and " + later, e);
+        }
+    }
+
+    /* package */ static boolean isMergeable(String operation) {
+        return OPERATION_SET.equals(operation) || OPERATION_SET_ONCE.equals(operation) || OPERATION_ADD.equals(operation);
+    }
+
+    /* package */ static boolean sameProfile(JSONObject a, JSONObject b) {
+        final String distinctId = a.optString(KEY_DISTINCT_ID, null);
+        return null != distinctId &&
+                distinctId.equals(b.optString(KEY_DISTINCT_ID, null)) &&
+                a.optString(KEY_TOKEN, "").equals(b.optString(KEY_TOKEN, ""));
+    }
+
+    // Whether update may change or depend on any of the properties named by the keys of values
+    private static boolean touchesAny(JSONObject update, JSONObject values) {
+        final String operation = getOperation(update);
+        if (null == operation) {
+            return true;
+        }
+        final Object touched = update.opt(operation);
+        if (touched instanceof JSONObject) {
+            final Iterator<String> keys = ((JSONObject) touched).keys();
+            while (keys.hasNext()) {
+                if (values.has(keys.next())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (touched instanceof JSONArray) {
+            // Such as the property names of an $unset
+            final JSONArray names = (JSONArray) touched;
+            for (int i = 0; i < names.length(); i++) {
+                if (values.has(names.optString(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return true; // Such as $delete, which touches everything
+    }
+
+    private static boolean hasMergeableValues(String operation, JSONObject values) {
+        if (null == values) {
+            return false;
+        }
+        if (!OPERATION_ADD.equals(operation)) {
+            return true;
+        }
+        final Iterator<String> keys = values.keys();
+        while (keys.hasNext()) {
+            if (!(values.opt(keys.next()) instanceof Number)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sums whole numbers exactly, and anything else as doubles
+    private static Number add(Number a, Number b) {
+        if (null == a) {
+            return b;
+        }
+        if (isWhole(a) && isWhole(b)) {
+            return a.longValue() + b.longValue();
+        }
+        return a.doubleValue() + b.doubleValue();
+    }
+
+    private static boolean isWhole(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    private static JSONObject copy(JSONObject o) throws JSONException {
+        final JSONObject copy = new JSONObject();
+        final Iterator<String> keys = o.keys();
+        while (keys.hasNext()) {
+            final String key = keys.next();
+            copy.put(key, o.get(key));
+        }
+        return copy;
+    }
+
+    /* package */ static final String OPERATION_SET = "$set";
+    /* package */ static final String OPERATION_SET_ONCE = "$set_once";
+    /* package */ static final String OPERATION_ADD = "$add";
+    /* package */ static final String KEY_TOKEN = "$token";
+    /* package */ static final String KEY_DISTINCT_ID = "$distinct_id";
+    /* package */ static final String KEY_TIME = "$time";
+}
@@ -74,7 +74,7 @@ import com.mixpanel.android.util.MPLog;
         mLoadStoredPreferences = storedPreferences;
         mTimeEventsPreferences = timeEventsPreferences;
         mMixpanelPreferences = mixpanelPreferences;
-        mSuperPropertiesCache = null;
+        mSuperProperties = null;
         mReferrerPropertiesCache = null;
         mIdentitiesLoaded = false;
         mReferrerChangeListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
@@ -88,8 +88,31 @@ import com.mixpanel.android.util.MPLog;
         };
     }
 
-    public synchronized void addSuperPropertiesToObject(JSONObject ob) {
-        final JSONObject superProperties = this.getSuperPropertiesCache();
+    // Doesn't lock once super properties are loaded, so tracking threads don't contend with each other
+    public void addSuperPropertiesToObject(JSONObject ob) {
+        addSuperPropertiesToObject(ob, getSuperPropertiesSnapshot());
+    }
+
+    /**
+     * Returns the current super properties without copying them. Super properties are copied on
+     * write, so the returned object is never modified again and can be kept to add the super
+     * properties as they are now to an event built later. Callers must not modify it either.
+     */
+    public JSONObject getSuperPropertiesSnapshot() {
+        JSONObject snapshot = mSuperProperties;
+        if (null == snapshot) {
+            synchronized (this) {
+                if (null == mSuperProperties) {
+                    readSuperProperties();
+                }
+                snapshot = mSuperProperties;
+            }
+        }
+        return snapshot;
+    }
+
+    // Adds superProperties, usually a snapshot, to ob
+    public static void addSuperPropertiesToObject(JSONObject ob, JSONObject superProperties) {
         final Iterator<?> superIter = superProperties.keys();
         while (superIter.hasNext()) {
             final String key = (String) superIter.next();
@@ -103,18 +126,8 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void updateSuperProperties(SuperPropertyUpdate updates) {
-        final JSONObject oldPropCache = getSuperPropertiesCache();
-        final JSONObject copy = new JSONObject();
-
-        try {
-            final Iterator<String> keys = oldPropCache.keys();
-            while (keys.hasNext()) {
-                final String k = keys.next();
-                final Object v = oldPropCache.get(k);
-                copy.put(k, v);
-            }
-        } catch (JSONException e) {
-            MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+        final JSONObject copy = copySuperPropertiesCache();
+        if (null == copy) {
             return;
         }
 
@@ -124,7 +137,7 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        mSuperPropertiesCache = replacementCache;
+        publishSuperProperties(replacementCache);
         storeSuperProperties();
     }
 
@@ -138,11 +151,18 @@ import com.mixpanel.android.util.MPLog;
         return mReferrerPropertiesCache;
     }
 
-    public synchronized String getEventsDistinctId() {
-        if (! mIdentitiesLoaded) {
-            readIdentities();
+    // Doesn't lock once the ids are loaded, so tracking threads don't contend with each other
+    public String getEventsDistinctId() {
+        final String eventsDistinctId = mEventsDistinctId;
+        if (null != eventsDistinctId) {
+            return eventsDistinctId;
+        }
+        synchronized (this) {
+            if (! mIdentitiesLoaded) {
+                readIdentities();
+            }
+            return mEventsDistinctId;
         }
-        return mEventsDistinctId;
     }
 
     public synchronized void setEventsDistinctId(String eventsDistinctId) {
@@ -203,6 +223,7 @@ import com.mixpanel.android.util.MPLog;
             final SharedPreferences.Editor prefsEdit = prefs.edit();
             prefsEdit.clear();
             writeEdits(prefsEdit);
+            publishSuperProperties(null);
             readSuperProperties();
             readIdentities();
         } catch (final ExecutionException e) {
@@ -213,7 +234,10 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void registerSuperProperties(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
@@ -224,6 +248,7 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
+        publishSuperProperties(propCache);
         storeSuperProperties();
     }
 
@@ -267,9 +292,13 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void unregisterSuperProperty(String superPropertyName) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
         propCache.remove(superPropertyName);
 
+        publishSuperProperties(propCache);
         storeSuperProperties();
     }
 
@@ -321,7 +350,10 @@ import com.mixpanel.android.util.MPLog;
     }
 
     public synchronized void registerSuperPropertiesOnce(JSONObject superProperties) {
-        final JSONObject propCache = getSuperPropertiesCache();
+        final JSONObject propCache = copySuperPropertiesCache();
+        if (null == propCache) {
+            return;
+        }
 
         for (final Iterator<?> iter = superProperties.keys(); iter.hasNext(); ) {
             final String key = (String) iter.next();
@@ -334,11 +366,12 @@ import com.mixpanel.android.util.MPLog;
             }
         }// for
 
+        publishSuperProperties(propCache);
         storeSuperProperties();
     }
 
     public synchronized void clearSuperProperties() {
-        mSuperPropertiesCache = new JSONObject();
+        publishSuperProperties(new JSONObject());
         storeSuperProperties();
     }
 
@@ -465,12 +498,28 @@ import com.mixpanel.android.util.MPLog;
 
     //////////////////////////////////////////////////
 
+    // Super properties are copied on write, so a published snapshot is never modified again.
+    // Readers can use it without locking, and it can be kept for events tracked against it.
     // Must be called from a synchronized setting
-    private JSONObject getSuperPropertiesCache() {
-        if (null == mSuperPropertiesCache) {
-            readSuperProperties();
+    private JSONObject copySuperPropertiesCache() {
+        final JSONObject propCache = getSuperPropertiesSnapshot();
+        final JSONObject copy = new JSONObject();
+        try {
+            final Iterator<String> keys = propCache.keys();
+            while (keys.hasNext()) {
+                final String k = keys.next();
+                copy.put(k, propCache.get(k));
+            }
+        } catch (final JSONException e) {
+            MPLog.e(LOGTAG, "Can't copy from one JSONObject to another", e);
+            return null;
         }
-        return mSuperPropertiesCache;
+        return copy;
+    }
+
+    // Must be called from a synchronized setting
+    private void publishSuperProperties(JSONObject replacement) {
+        mSuperProperties = replacement;
     }
 
     // All access should be synchronized on this
@@ -479,17 +528,18 @@ import com.mixpanel.android.util.MPLog;
             final SharedPreferences prefs = mLoadStoredPreferences.get();
             final String props = prefs.getString("super_properties", "{}");
             MPLog.v(LOGTAG, "Loading Super Properties " + props);
-            mSuperPropertiesCache = new JSONObject(props);
+            mSuperProperties = new JSONObject(props);
         } catch (final ExecutionException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e.getCause());
         } catch (final InterruptedException e) {
             MPLog.e(LOGTAG, "Cannot load superProperties from SharedPreferences.", e);
         } catch (final JSONException e) {
             MPLog.e(LOGTAG, "Cannot parse stored superProperties");
+            mSuperProperties = new JSONObject();
             storeSuperProperties();
         } finally {
-            if (null == mSuperPropertiesCache) {
-                mSuperPropertiesCache = new JSONObject();
+            if (null == mSuperProperties) {
+                mSuperProperties = new JSONObject();
             }
         }
     }
@@ -518,12 +568,12 @@ import com.mixpanel.android.util.MPLog;
 
     // All access should be synchronized on this
     private void storeSuperProperties() {
-        if (null == mSuperPropertiesCache) {
+        if (null == mSuperProperties) {
             MPLog.e(LOGTAG, "storeSuperProperties should not be called with uninitialized superPropertiesCache.");
             return;
         }
 
-        final String props = mSuperPropertiesCache.toString();
+        final String props = mSuperProperties.toString();
         MPLog.v(LOGTAG, "Storing Super Properties " + props);
 
         try {
@@ -553,7 +603,9 @@ import com.mixpanel.android.util.MPLog;
             return;
         }
 
-        mEventsDistinctId = prefs.getString("events_distinct_id", null);
+        // Assigned once, so lock-free readers never see the id missing while it is generated
+        final String storedEventsDistinctId = prefs.getString("events_distinct_id", null);
+        mEventsDistinctId = null == storedEventsDistinctId ? UUID.randomUUID().toString() : storedEventsDistinctId;
         mPeopleDistinctId = prefs.getString("people_distinct_id", null);
         mWaitingPeopleRecords = null;
 
@@ -566,8 +618,7 @@ import com.mixpanel.android.util.MPLog;
             }
         }
 
-        if (null == mEventsDistinctId) {
-            mEventsDistinctId = UUID.randomUUID().toString();
+        if (null == storedEventsDistinctId) {
             writeIdentities();
         }
 
@@ -604,10 +655,10 @@ import com.mixpanel.android.util.MPLog;
     private final Future<SharedPreferences> mTimeEventsPreferences;
     private final Future<SharedPreferences> mMixpanelPreferences;
     private final SharedPreferences.OnSharedPreferenceChangeListener mReferrerChangeListener;
-    private JSONObject mSuperPropertiesCache;
+    private volatile JSONObject mSuperProperties; // Immutable once published, replaced on every change
     private Map<String, String> mReferrerPropertiesCache;
     private boolean mIdentitiesLoaded;
-    private String mEventsDistinctId;
+    private volatile String mEventsDistinctId; // Written under this, read without locking
     private String mPeopleDistinctId;
     private JSONArray mWaitingPeopleRecords;
     private static Integer sPreviousVersionCode;
@@ -0,0 +1,89 @@
+package com.mixpanel.android.mpmetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses stored records with raw deflate and a preset dictionary.
+ *
+ * Records of the same project repeat the same property names and super property values, which
+ * a single record compresses poorly on its own. Seeding the compressor with an earlier record
+ * as its dictionary lets every one of those repeats be written as a short back reference.
+ *
+ * Not thread safe, MPDbAdapter uses one instance under its own lock.
+ */
+/* package */ class RecordCompressor {
+
+    public RecordCompressor() {
+        mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        mInflater = new Inflater(true);
+    }
+
+    /**
+     * Makes a dictionary out of a sample record. Deflate can only refer back 32 KB, so only
+     * the end of a larger sample is kept.
+     */
+    public static byte[] trainDictionary(String sample) {
+        final byte[] bytes = sample.getBytes(UTF_8);
+        if (bytes.length <= MAX_DICTIONARY_BYTES) {
+            return bytes;
+        }
+        final byte[] dictionary = new byte[MAX_DICTIONARY_BYTES];
+        System.arraycopy(bytes, bytes.length - MAX_DICTIONARY_BYTES, dictionary, 0, MAX_DICTIONARY_BYTES);
+        return dictionary;
+    }
+
+    /**
+     * @return the compressed record, or null if compressing it wouldn't save any space
+     */
+    public byte[] compress(String record, byte[] dictionary) {
+        final byte[] input = record.getBytes(UTF_8);
+        mDeflater.reset();
+        mDeflater.setDictionary(dictionary);
+        mDeflater.setInput(input);
+        mDeflater.finish();
+
+        mOutput.reset();
+        while (!mDeflater.finished()) {
+            final int written = mDeflater.deflate(mChunk);
+            mOutput.write(mChunk, 0, written);
+            if (mOutput.size() >= input.length) {
+                return null;
+            }
+        }
+        return mOutput.toByteArray();
+    }
+
+    public String decompress(byte[] compressed, byte[] dictionary) throws DataFormatException {
+        mInflater.reset();
+        mInflater.setDictionary(dictionary);
+        mInflater.setInput(compressed);
+
+        mOutput.reset();
+        while (!mInflater.finished()) {
+            final int read = mInflater.inflate(mChunk);
+            if (read == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                throw new DataFormatException("Compressed record is truncated");
+            }
+            mOutput.write(mChunk, 0, read);
+        }
+        return new String(mOutput.toByteArray(), UTF_8);
+    }
+
+    // Frees the native zlib state, the compressor can't be used afterwards
+    public void release() {
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    private final Deflater mDeflater;
+    private final Inflater mInflater;
+    private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+    private final byte[] mChunk = new byte[4096];
+
+    private static final int MAX_DICTIONARY_BYTES = 32 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+}
@@ -0,0 +1,716 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.content.Context;
+import com.mixpanel.android.util.MPLog;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link EventStore} that keeps every queue in an append-only log of memory-mapped segment
+ * files, instead of in SQLite.
+ *
+ * Queued records are only ever appended, read oldest first, and dropped up to an id, so each
+ * queue (a table, a token and whether the records are automatic) is a directory of segments
+ * plus a cursor file holding the largest acknowledged id. Appending writes a CRC-checked frame
+ * to the mapped tail segment. Acknowledging a batch persists the cursor and deletes segments
+ * that hold only acknowledged frames. On open, every segment is scanned up to its first frame
+ * that is torn or fails its CRC, so a crash mid-append loses at most that record.
+ *
+ * Writes reach the page cache when they return, so they survive the process being killed,
+ * but not necessarily the device losing power.
+ *
+ * Record ids are shared by all queues, so a regular and an automatic queue can be read
+ * together in the order their records were added.
+ *
+ * The shared instance serves every project token. Per request limits are read from the config
+ * of the token being read, MinimumDatabaseLimit from the config of the token that opened it.
+ */
+/* package */ class SegmentLogStore implements EventStore {
+
+    public static SegmentLogStore getInstance(Context context, String token) {
+        synchronized (sInstanceLock) {
+            if (null == sInstance) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new SegmentLogStore(appContext, getDirectory(appContext), token);
+            }
+            return sInstance;
+        }
+    }
+
+    public SegmentLogStore(Context context, File directory, String token) {
+        mContext = context;
+        mDirectory = directory;
+        mConfig = MPConfig.getInstance(context, token);
+        loadQueues();
+    }
+
+    // Where the shared instance keeps its queues
+    public static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY_NAME);
+    }
+
+    @Override
+    public synchronized int append(List<MPDbAdapter.Record> records) {
+        if (records.isEmpty()) {
+            return MPDbAdapter.DB_UNDEFINED_CODE;
+        }
+
+        if (!belowMemThreshold()) {
+            MPLog.e(LOGTAG, "There is not enough space left on the device to store Mixpanel data, so data was discarded");
+            return MPDbAdapter.DB_OUT_OF_MEMORY_ERROR;
+        }
+
+        try {
+            final long createdAt = System.currentTimeMillis();
+            for (final MPDbAdapter.Record record : records) {
+                if (null == record.getToken()) {
+                    MPLog.e(LOGTAG, "Mixpanel record has no project token, will not store it");
+                    continue;
+                }
+                final LogQueue queue = getQueue(record.getTable(), record.getToken(), record.isAutomatic(), true);
+                queue.append(mNextId, createdAt, record.getSerializedData().getBytes(UTF_8));
+                mNextId++;
+            }
+
+            int maxCount = 0;
+            for (final MPDbAdapter.Record record : records) {
+                maxCount = Math.max(maxCount, depth(record.getTable(), record.getToken(), true));
+            }
+            return maxCount;
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not add a batch of " + records.size() + " Mixpanel records. Discarding the projects' records.", e);
+            for (final MPDbAdapter.Record record : records) {
+                if (null != record.getToken()) {
+                    deleteRecords(record.getToken());
+                }
+            }
+            return MPDbAdapter.DB_UPDATE_ERROR;
+        }
+    }
+
+    @Override
+    public synchronized void ack(MPDbAdapter.Table table, String token, long lastId, boolean includeAutomaticEvents) {
+        try {
+            acknowledge(getQueue(table, token, false, false), lastId);
+            if (includeAutomaticEvents) {
+                acknowledge(getQueue(table, token, true, false), lastId);
+            }
+        } catch (final IOException e) {
+            MPLog.e(LOGTAG, "Could not clean sent Mixpanel records from " + table.getName() + ". Discarding the project's records.", e);
+            deleteRecords(token);
+        }
+    }
+
+    @Override
+    public synchronized void expire(MPDbAdapter.Table table, long time) {
+        final Iterator<LogQueue> queues = mQueues.values().iterator();
+        while (queues.hasNext()) {
+            final LogQueue queue = queues.next();
+            if (queue.mTable != table) {
+                continue;
+            }
+            try {
+                queue.expire(time);
+            } catch (final IOException e) {
+                // Only the queue that failed is dropped, the others belong to other projects
+                MPLog.e(LOGTAG, "Could not clean timed-out Mixpanel records from " + queue.mQueueDirectory + ". Discarding them.", e);
+                queues.remove();
+                queue.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void cleanupAutomaticEvents(String token) {
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            final LogQueue queue = mQueues.remove(queueName(table, token, true));
+            if (null != queue) {
+                queue.delete();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void deleteRecords(String token) {
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            for (final boolean isAutomatic : new boolean[] { false, true }) {
+                final String name = queueName(table, token, isAutomatic);
+                final LogQueue queue = mQueues.remove(name);
+                if (null != queue) {
+                    queue.delete();
+                } else {
+                    deleteRecursively(new File(mDirectory, name));
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized Batch peekBatch(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents, long afterId) {
+        final MPConfig config = MPConfig.getInstance(mContext, token);
+        final int maxRecords = config.getMaxRecordsPerRequest(table);
+        final int maxRequestBytes = config.getMaxRequestBytes();
+
+        final LogQueue regular = getQueue(table, token, false, false);
+        final LogQueue automatic = includeAutomaticEvents ? getQueue(table, token, true, false) : null;
+        final FrameReader regularReader = null == regular ? null : regular.read(afterId);
+        final FrameReader automaticReader = null == automatic ? null : automatic.read(afterId);
+
+        final StringBuilder sb = mBatchBuilder;
+        sb.setLength(0);
+        long lastId = NO_ID;
+        int count = 0;
+        int bytes = 0;
+        while (count < maxRecords) {
+            final FrameReader next = older(regularReader, automaticReader);
+            if (null == next) {
+                break;
+            }
+            // Frames hold UTF-8 payloads, so their length is what the record adds to the request
+            final int payloadBytes = next.getLength();
+            // The batch always takes its first record, so a single oversized record can't stall the queue
+            if (NO_ID != lastId && bytes + 1 + payloadBytes > maxRequestBytes) {
+                break;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+                bytes++;
+            }
+            sb.append(next.getPayload());
+            bytes += payloadBytes;
+            lastId = next.getId();
+            count++;
+            next.advance();
+        }
+
+        if (NO_ID == lastId) {
+            return null;
+        }
+        return new Batch(lastId, sb.toString(), count, depth(table, token, includeAutomaticEvents));
+    }
+
+    @Override
+    public synchronized int depth(MPDbAdapter.Table table, String token, boolean includeAutomaticEvents) {
+        final LogQueue regular = getQueue(table, token, false, false);
+        int depth = null == regular ? 0 : regular.mDepth;
+        if (includeAutomaticEvents) {
+            final LogQueue automatic = getQueue(table, token, true, false);
+            depth += null == automatic ? 0 : automatic.mDepth;
+        }
+        return depth;
+    }
+
+    @Override
+    public synchronized void deleteDB() {
+        for (final LogQueue queue : mQueues.values()) {
+            queue.delete();
+        }
+        mQueues.clear();
+        deleteRecursively(mDirectory);
+    }
+
+    @Override
+    public synchronized void close() {
+        for (final LogQueue queue : mQueues.values()) {
+            queue.force();
+        }
+    }
+
+    private boolean belowMemThreshold() {
+        long size = 0;
+        for (final LogQueue queue : mQueues.values()) {
+            size += queue.sizeOnDisk();
+        }
+        if (mDirectory.exists()) {
+            return Math.max(mDirectory.getUsableSpace(), mConfig.getMinimumDatabaseLimit()) >= size;
+        }
+        return true;
+    }
+
+    private void acknowledge(LogQueue queue, long lastId) throws IOException {
+        if (null != queue) {
+            queue.acknowledge(lastId);
+        }
+    }
+
+    // Of the two readers, returns the one positioned on the older record, or null if both are done
+    private static FrameReader older(FrameReader a, FrameReader b) {
+        final boolean aReady = null != a && a.hasFrame();
+        final boolean bReady = null != b && b.hasFrame();
+        if (aReady && bReady) {
+            return a.getId() < b.getId() ? a : b;
+        }
+        return aReady ? a : (bReady ? b : null);
+    }
+
+    private LogQueue getQueue(MPDbAdapter.Table table, String token, boolean isAutomatic, boolean create) {
+        final String name = queueName(table, token, isAutomatic);
+        LogQueue queue = mQueues.get(name);
+        if (null == queue && create) {
+            queue = new LogQueue(new File(mDirectory, name), table);
+            mQueues.put(name, queue);
+        }
+        return queue;
+    }
+
+    private void loadQueues() {
+        final File[] queueDirectories = mDirectory.listFiles();
+        if (null == queueDirectories) {
+            return;
+        }
+        for (final File queueDirectory : queueDirectories) {
+            final MPDbAdapter.Table table = tableOfQueue(queueDirectory.getName());
+            if (null == table || !queueDirectory.isDirectory()) {
+                continue;
+            }
+            final LogQueue queue = new LogQueue(queueDirectory, table);
+            try {
+                queue.load();
+            } catch (final IOException e) {
+                MPLog.e(LOGTAG, "Could not read the Mixpanel log in " + queueDirectory + ", discarding it", e);
+                queue.delete();
+                continue;
+            }
+            mQueues.put(queueDirectory.getName(), queue);
+            mNextId = Math.max(mNextId, queue.mLastId + 1);
+        }
+    }
+
+    // Queue directories are named <table>.<0 or 1 for automatic records>.<url encoded token>
+    private static String queueName(MPDbAdapter.Table table, String token, boolean isAutomatic) {
+        try {
+            return table.getName() + (isAutomatic ? ".1." : ".0.") + URLEncoder.encode(token, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 is not supported", e);
+        }
+    }
+
+    private static MPDbAdapter.Table tableOfQueue(String queueName) {
+        final int separator = queueName.indexOf('.');
+        if (separator < 0) {
+            return null;
+        }
+        final String tableName = queueName.substring(0, separator);
+        for (final MPDbAdapter.Table table : MPDbAdapter.Table.values()) {
+            if (table.getName().equals(tableName)) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (null != children) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The segments and cursor of one queue. Frames are laid out as
+     * [int payload length][int CRC32 of the rest][long id][long created at][UTF-8 payload].
+     */
+    private static class LogQueue {
+        public LogQueue(File directory, MPDbAdapter.Table table) {
+            mQueueDirectory = directory;
+            mTable = table;
+            mCursorFile = new File(directory, CURSOR_FILE_NAME);
+        }
+
+        public void load() throws IOException {
+            mAckedId = readCursor();
+            final File[] files = mQueueDirectory.listFiles();
+            final List<Long> firstIds = new ArrayList<>();
+            if (null != files) {
+                for (final File file : files) {
+                    final String name = file.getName();
+                    if (name.endsWith(SEGMENT_SUFFIX)) {
+                        try {
+                            firstIds.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                        } catch (final NumberFormatException e) {
+                            MPLog.w(LOGTAG, "Ignoring unexpected file " + file + " in the Mixpanel log");
+                        }
+                    }
+                }
+            }
+            Collections.sort(firstIds);
+
+            for (final Long firstId : firstIds) {
+                final Segment segment = Segment.open(segmentFile(firstId), mCrc);
+                if (segment.mFrameCount == 0 || segment.mLastId <= mAckedId) {
+                    segment.delete();
+                    continue;
+                }
+                mSegments.add(segment);
+                mLastId = Math.max(mLastId, segment.mLastId);
+            }
+            mLastId = Math.max(mLastId, mAckedId);
+            mDepth = 0;
+            mHeadOffset = 0;
+            if (!mSegments.isEmpty()) {
+                mHeadOffset = mSegments.get(0).skipTo(0, mAckedId);
+                for (final Segment segment : mSegments) {
+                    mDepth += segment.countAfter(mAckedId);
+                }
+            }
+        }
+
+        public void append(long id, long createdAt, byte[] payload) throws IOException {
+            final int frameBytes = FRAME_HEADER_BYTES + payload.length;
+            Segment tail = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+            if (null == tail || !tail.fits(frameBytes)) {
+                if (!mQueueDirectory.exists() && !mQueueDirectory.mkdirs()) {
+                    throw new IOException("Can't create " + mQueueDirectory);
+                }
+                tail = Segment.create(segmentFile(id), Math.max(SEGMENT_BYTES, frameBytes + TERMINATOR_BYTES));
+                mSegments.add(tail);
+                if (mSegments.size() == 1) {
+                    mHeadOffset = 0;
+                }
+            }
+            tail.append(id, createdAt, payload, mCrc);
+            mLastId = id;
+            mDepth++;
+        }
+
+        public FrameReader read(long afterId) {
+            return new FrameReader(this, Math.max(afterId, mAckedId));
+        }
+
+        // Drops every frame with an id up to lastId
+        public void acknowledge(long lastId) throws IOException {
+            if (lastId <= mAckedId) {
+                return;
+            }
+            while (!mSegments.isEmpty()) {
+                final Segment head = mSegments.get(0);
+                final int offset = head.skipTo(mHeadOffset, lastId);
+                mDepth -= head.countBetween(mHeadOffset, offset);
+                mHeadOffset = offset;
+                if (offset < head.mWriteOffset) {
+                    break; // The head segment still has frames newer than lastId
+                }
+                if (mSegments.size() == 1) {
+                    break; // Keep the tail segment to append to
+                }
+                head.delete();
+                mSegments.remove(0);
+                mHeadOffset = 0;
+            }
+            mAckedId = lastId;
+            writeCursor(lastId);
+        }
+
+        // Drops the oldest frames up to the first one created after time
+        public void expire(long time) throws IOException {
+            final FrameReader reader = read(mAckedId);
+            long expiredId = -1;
+            while (reader.hasFrame() && reader.getCreatedAt() <= time) {
+                expiredId = reader.getId();
+                reader.advance();
+            }
+            if (expiredId >= 0) {
+                acknowledge(expiredId);
+            }
+        }
+
+        public long sizeOnDisk() {
+            long size = 0;
+            for (final Segment segment : mSegments) {
+                size += segment.mCapacity;
+            }
+            return size;
+        }
+
+        public void force() {
+            for (final Segment segment : mSegments) {
+                segment.mBuffer.force();
+            }
+        }
+
+        public void delete() {
+            for (final Segment segment : mSegments) {
+                segment.delete();
+            }
+            mSegments.clear();
+            mDepth = 0;
+            deleteRecursively(mQueueDirectory);
+        }
+
+        private File segmentFile(long firstId) {
+            return new File(mQueueDirectory, String.format(Locale.US, "%019d", firstId) + SEGMENT_SUFFIX);
+        }
+
+        // The cursor is stored with its complement, so a torn write reads as no cursor at all
+        private long readCursor() {
+            if (!mCursorFile.exists()) {
+                return 0;
+            }
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mCursorFile, "r");
+                final long cursor = file.readLong();
+                final long check = file.readLong();
+                if (cursor == ~check) {
+                    return cursor;
+                }
+                MPLog.w(LOGTAG, "Mixpanel log cursor " + mCursorFile + " is corrupt, records may be sent again");
+            } catch (final IOException e) {
+                MPLog.w(LOGTAG, "Could not read Mixpanel log cursor " + mCursorFile + ", records may be sent again", e);
+            } finally {
+                closeQuietly(file);
+            }
+            return 0;
+        }
+
+        private void writeCursor(long cursor) throws IOException {
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mCursorFile, "rw");
+                file.writeLong(cursor);
+                file.writeLong(~cursor);
+            } finally {
+                closeQuietly(file);
+            }
+        }
+
+        private final File mQueueDirectory;
+        private final MPDbAdapter.Table mTable;
+        private final File mCursorFile;
+        private final List<Segment> mSegments = new ArrayList<>();
+        private final CRC32 mCrc = new CRC32();
+        private long mAckedId = 0;
+        private long mLastId = 0;
+        private int mHeadOffset = 0; // Offset of the first unacknowledged frame in the head segment
+        private int mDepth = 0;
+    }
+
+    /**
+     * Walks the frames of a queue with ids greater than a starting id, in order.
+     */
+    private static class FrameReader {
+        public FrameReader(LogQueue queue, long afterId) {
+            mQueue = queue;
+            mSegmentIndex = 0;
+            mOffset = queue.mHeadOffset;
+            while (hasFrame() && getId() <= afterId) {
+                advance();
+            }
+        }
+
+        public boolean hasFrame() {
+            while (mSegmentIndex < mQueue.mSegments.size()) {
+                if (mOffset < currentSegment().mWriteOffset) {
+                    return true;
+                }
+                mSegmentIndex++;
+                mOffset = 0;
+            }
+            return false;
+        }
+
+        public long getId() {
+            return currentSegment().mBuffer.getLong(mOffset + 8);
+        }
+
+        public long getCreatedAt() {
+            return currentSegment().mBuffer.getLong(mOffset + 16);
+        }
+
+        public int getLength() {
+            return currentSegment().mBuffer.getInt(mOffset);
+        }
+
+        public String getPayload() {
+            final int length = getLength();
+            final byte[] payload = new byte[length];
+            final ByteBuffer frame = currentSegment().mBuffer.duplicate();
+            frame.position(mOffset + FRAME_HEADER_BYTES);
+            frame.get(payload);
+            return new String(payload, UTF_8);
+        }
+
+        public void advance() {
+            mOffset += FRAME_HEADER_BYTES + getLength();
+        }
+
+        private Segment currentSegment() {
+            return mQueue.mSegments.get(mSegmentIndex);
+        }
+
+        private final LogQueue mQueue;
+        private int mSegmentIndex;
+        private int mOffset;
+    }
+
+    /**
+     * A single mapped segment file. Its frames end at mWriteOffset, followed by a zero length.
+     */
+    private static class Segment {
+        public static Segment create(File file, int capacity) throws IOException {
+            final Segment segment = new Segment(file, map(file, capacity), capacity);
+            segment.mBuffer.putInt(0, 0);
+            return segment;
+        }
+
+        public static Segment open(File file, CRC32 crc) throws IOException {
+            final int capacity = (int) file.length();
+            final Segment segment = new Segment(file, map(file, capacity), capacity);
+            segment.recover(crc);
+            return segment;
+        }
+
+        private Segment(File file, MappedByteBuffer buffer, int capacity) {
+            mFile = file;
+            mBuffer = buffer;
+            mCapacity = capacity;
+        }
+
+        public boolean fits(int frameBytes) {
+            return mWriteOffset + frameBytes + TERMINATOR_BYTES <= mCapacity;
+        }
+
+        public void append(long id, long createdAt, byte[] payload, CRC32 crc) {
+            final int offset = mWriteOffset;
+            mBuffer.putLong(offset + 8, id);
+            mBuffer.putLong(offset + 16, createdAt);
+            final ByteBuffer frame = mBuffer.duplicate();
+            frame.position(offset + FRAME_HEADER_BYTES);
+            frame.put(payload);
+            // Terminate the log before publishing the frame's length, so a torn frame is never followed by stale data
+            mBuffer.putInt(offset + FRAME_HEADER_BYTES + payload.length, 0);
+            mBuffer.putInt(offset + 4, (int) frameCrc(offset, payload.length, crc));
+            mBuffer.putInt(offset, payload.length);
+
+            mWriteOffset = offset + FRAME_HEADER_BYTES + payload.length;
+            mLastId = id;
+            mFrameCount++;
+        }
+
+        // Returns the offset of the first frame at or after offset with an id greater than id
+        public int skipTo(int offset, long id) {
+            while (offset < mWriteOffset && mBuffer.getLong(offset + 8) <= id) {
+                offset += FRAME_HEADER_BYTES + mBuffer.getInt(offset);
+            }
+            return offset;
+        }
+
+        public int countBetween(int from, int to) {
+            int count = 0;
+            while (from < to) {
+                from += FRAME_HEADER_BYTES + mBuffer.getInt(from);
+                count++;
+            }
+            return count;
+        }
+
+        public int countAfter(long id) {
+            final int offset = skipTo(0, id);
+            return countBetween(offset, mWriteOffset);
+        }
+
+        public void delete() {
+            if (!mFile.delete()) {
+                MPLog.w(LOGTAG, "Could not delete Mixpanel log segment " + mFile);
+            }
+        }
+
+        // Finds the end of the valid frames, which is where the next frame will be written
+        private void recover(CRC32 crc) {
+            int offset = 0;
+            while (offset + FRAME_HEADER_BYTES <= mCapacity) {
+                final int length = mBuffer.getInt(offset);
+                if (length <= 0 || offset + FRAME_HEADER_BYTES + length > mCapacity) {
+                    break;
+                }
+                if (mBuffer.getInt(offset + 4) != (int) frameCrc(offset, length, crc)) {
+                    MPLog.w(LOGTAG, "Mixpanel log segment " + mFile + " has a corrupt record, dropping it and the rest of the segment");
+                    break;
+                }
+                mLastId = mBuffer.getLong(offset + 8);
+                mFrameCount++;
+                offset += FRAME_HEADER_BYTES + length;
+            }
+            mWriteOffset = offset;
+            if (offset + TERMINATOR_BYTES <= mCapacity) {
+                mBuffer.putInt(offset, 0);
+            }
+        }
+
+        // Covers the id, the creation time and the payload
+        private long frameCrc(int offset, int payloadLength, CRC32 crc) {
+            crc.reset();
+            final int end = offset + FRAME_HEADER_BYTES + payloadLength;
+            for (int i = offset + 8; i < end; i++) {
+                crc.update(mBuffer.get(i));
+            }
+            return crc.getValue();
+        }
+
+        private static MappedByteBuffer map(File file, int capacity) throws IOException {
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(file, "rw");
+                randomAccessFile.setLength(capacity);
+                // The mapping stays valid after the channel is closed
+                return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } finally {
+                closeQuietly(randomAccessFile);
+            }
+        }
+
+        private final File mFile;
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private int mWriteOffset = 0;
+        private long mLastId = 0;
+        private int mFrameCount = 0;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (null != file) {
+            try {
+                file.close();
+            } catch (final IOException e) {
+                MPLog.w(LOGTAG, "Could not close " + file, e);
+            }
+        }
+    }
+
+    private final Context mContext;
+    private final File mDirectory;
+    private final MPConfig mConfig;
+    private final Map<String, LogQueue> mQueues = new HashMap<>();
+    private final StringBuilder mBatchBuilder = new StringBuilder();
+    private long mNextId = 1;
+
+    private static final Object sInstanceLock = new Object();
+    private static SegmentLogStore sInstance;
+
+    private static final String DIRECTORY_NAME = "mixpanel_log";
+    private static final String CURSOR_FILE_NAME = "cursor";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int SEGMENT_BYTES = 256 * 1024;
+    private static final int FRAME_HEADER_BYTES = 24;
+    private static final int TERMINATOR_BYTES = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String LOGTAG = "MixpanelAPI.SegmentLog";
+}
@@ -4,10 +4,20 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.support.annotation.NonNull;
 
+/**
+ * Numbers a project's events in the order they are tracked.
+ *
+ * Instead of writing every number to SharedPreferences, a block of numbers is reserved by storing
+ * the end of the block, and numbers are then handed out from memory until the block runs out.
+ * After a restart numbering continues from the stored end, so numbers only ever increase, even
+ * if the process died before using its whole block.
+ */
 class SequenceNumber {
     @NonNull private static final String TAG = "SequenceNumber";
     @NonNull private static final String KEY_SEQ_NO = "seq_no_";
+    /* package */ static final long BLOCK_SIZE = 1000;
     private long sequenceNumber;
+    private long reservedUntil; // Exclusive end of the numbers that are stored as used
     @NonNull private final SharedPreferences preferences;
     @NonNull private final String preferencesKey;
 
@@ -15,11 +25,15 @@ class SequenceNumber {
         preferencesKey = KEY_SEQ_NO + token;
         preferences = context.getSharedPreferences(TAG, Context.MODE_PRIVATE);
         sequenceNumber = preferences.getLong(preferencesKey, 0L);
+        reservedUntil = sequenceNumber;
     }
 
-    long getSequenceNumberAndIncrement() {
-        final long currentSeqNo = sequenceNumber;
-        preferences.edit().putLong(preferencesKey, ++sequenceNumber).apply();
-        return currentSeqNo;
+    synchronized long getSequenceNumberAndIncrement() {
+        if (sequenceNumber >= reservedUntil) {
+            reservedUntil = sequenceNumber + BLOCK_SIZE;
+            // Written synchronously, numbers of the new block must not be used before it is on disk
+            preferences.edit().putLong(preferencesKey, reservedUntil).commit();
+        }
+        return sequenceNumber++;
     }
 }
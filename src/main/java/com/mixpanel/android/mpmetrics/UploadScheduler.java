@@ -0,0 +1,305 @@
+package com.mixpanel.android.mpmetrics;
+
+import android.os.SystemClock;
+import com.mixpanel.android.util.MPLog;
+import com.mixpanel.android.util.RemoteResponse;
+import com.mixpanel.android.util.RemoteService;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs uploads for the AnalyticsMessages worker off of the worker thread.
+ *
+ * Up to UploadWindow batches may be in flight at once, and each endpoint admits at most that
+ * many concurrent requests. If UploadHedgePercentile is set, a request that takes longer than
+ * that percentile of its endpoint's recent latencies is raced against the same request to the
+ * next endpoint, and the first response wins.
+ *
+ * The scheduler only posts, it never touches the database. Callers are responsible for
+ * acknowledging batches in the order they were read. The outcome of every request, hedged or
+ * not, is reported to a {@link RequestListener} under the url the request went to.
+ */
+/* package */ class UploadScheduler {
+
+    /**
+     * Told how each request to an endpoint ended. Called on the thread that ran the request, which
+     * may be an upload or request thread, so implementations must be thread-safe.
+     */
+    public interface RequestListener {
+        // The endpoint answered, whatever the response code
+        void onResponse(String url, RemoteResponse response);
+
+        // The request failed with an IOException or a ServiceUnavailableException
+        void onFailure(String url, Exception failure);
+
+        // The request never finished, because it was cancelled, interrupted, or ran out of memory
+        void onAbandoned(String url);
+    }
+
+    public UploadScheduler(MPConfig config) {
+        mConfig = config;
+        mWindow = Math.max(1, config.getUploadWindow());
+        mHedgePercentile = config.getUploadHedgePercentile();
+        mUploadExecutor = newExecutor(mWindow);
+        // Each upload can have a primary and a hedged request running at the same time
+        mRequestExecutor = newExecutor(2 * mWindow);
+    }
+
+    public int getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Runs an upload on one of the window's threads. Uploads should post with {@link #post(String, String, String, RequestListener)}.
+     */
+    public <T> Future<T> submit(Callable<T> upload) {
+        return mUploadExecutor.submit(upload);
+    }
+
+    /**
+     * Posts rawMessage to url, and if hedging is enabled and url is slow, also to hedgeUrl.
+     *
+     * @param hedgeUrl the endpoint to race against url, or null to never hedge
+     * @param listener told the outcome of each request, under the url it was sent to
+     * @return the first successful response
+     */
+    public RemoteResponse post(final String url, final String hedgeUrl, final String rawMessage, final RequestListener listener)
+            throws RemoteService.ServiceUnavailableException, IOException {
+        final long hedgeAfterMillis = null == hedgeUrl ? -1 : getLatencyPercentile(url);
+        if (hedgeAfterMillis < 0) {
+            return request(url, rawMessage, listener);
+        }
+
+        final CompletionService<RemoteResponse> completion = new ExecutorCompletionService<>(mRequestExecutor);
+        final Future<RemoteResponse> primary = completion.submit(requestCallable(url, rawMessage, listener));
+        Future<RemoteResponse> hedge = null;
+        try {
+            try {
+                return primary.get(hedgeAfterMillis, TimeUnit.MILLISECONDS);
+            } catch (final ExecutionException e) {
+                throw unwrap(e);
+            } catch (final TimeoutException e) {
+                // Fall through and hedge
+            }
+
+            if (!getEndpointWindow(hedgeUrl).tryAcquire()) {
+                return getResult(primary);
+            }
+            MPLog.v(LOGTAG, url + " is slower than " + hedgeAfterMillis + " ms, hedging the request to " + hedgeUrl);
+            hedge = completion.submit(new Callable<RemoteResponse>() {
+                @Override
+                public RemoteResponse call() throws Exception {
+                    try {
+                        return timedRequest(hedgeUrl, rawMessage, listener);
+                    } finally {
+                        getEndpointWindow(hedgeUrl).release();
+                    }
+                }
+            });
+
+            final Future<RemoteResponse> first = completion.take();
+            final Future<RemoteResponse> second = first == primary ? hedge : primary;
+            try {
+                return getResult(first);
+            } catch (final IOException e) {
+                MPLog.v(LOGTAG, "First of two hedged requests failed, waiting for the other", e);
+            } catch (final RemoteService.ServiceUnavailableException e) {
+                MPLog.v(LOGTAG, "First of two hedged requests failed, waiting for the other", e);
+            }
+            if (second == primary) {
+                return getResult(primary);
+            }
+            try {
+                return getResult(hedge);
+            } catch (final IOException e) {
+                MPLog.v(LOGTAG, "Hedged request to " + hedgeUrl + " failed", e);
+            } catch (final RemoteService.ServiceUnavailableException e) {
+                MPLog.v(LOGTAG, "Hedged request to " + hedgeUrl + " failed", e);
+            }
+            // Both failed, so report the primary endpoint's failure
+            return getResult(primary);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an upload", e);
+        } finally {
+            primary.cancel(true);
+            if (null != hedge) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    public void shutdown() {
+        mUploadExecutor.shutdownNow();
+        mRequestExecutor.shutdownNow();
+    }
+
+    private Callable<RemoteResponse> requestCallable(final String url, final String rawMessage, final RequestListener listener) {
+        return new Callable<RemoteResponse>() {
+            @Override
+            public RemoteResponse call() throws Exception {
+                return request(url, rawMessage, listener);
+            }
+        };
+    }
+
+    // Waits for its turn in the endpoint's window, then posts
+    private RemoteResponse request(String url, String rawMessage, RequestListener listener)
+            throws RemoteService.ServiceUnavailableException, IOException {
+        final Semaphore window = getEndpointWindow(url);
+        try {
+            window.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.onAbandoned(url);
+            throw new IOException("Interrupted while waiting to post to " + url, e);
+        }
+        try {
+            return timedRequest(url, rawMessage, listener);
+        } finally {
+            window.release();
+        }
+    }
+
+    private RemoteResponse timedRequest(String url, String rawMessage, RequestListener listener)
+            throws RemoteService.ServiceUnavailableException, IOException {
+        final long start = System.nanoTime();
+        boolean reported = false;
+        try {
+            final RemoteResponse response = mConfig.getRemoteService().performRequest(url, rawMessage);
+            recordLatency(url, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            reported = true;
+            listener.onResponse(url, response);
+            return response;
+        } catch (final RemoteService.ServiceUnavailableException e) {
+            reported = true;
+            listener.onFailure(url, e);
+            throw e;
+        } catch (final IOException e) {
+            // The losing request of a hedged pair is interrupted when it is cancelled, which says nothing about its endpoint
+            if (!Thread.currentThread().isInterrupted() && !(e instanceof InterruptedIOException)) {
+                reported = true;
+                listener.onFailure(url, e);
+            }
+            throw e;
+        } finally {
+            if (!reported) {
+                listener.onAbandoned(url);
+            }
+            synchronized (this) {
+                mLastRequestFinished = SystemClock.elapsedRealtime();
+            }
+        }
+    }
+
+    private static RemoteResponse getResult(Future<RemoteResponse> future)
+            throws RemoteService.ServiceUnavailableException, IOException, InterruptedException {
+        try {
+            return future.get();
+        } catch (final ExecutionException e) {
+            throw unwrap(e);
+        }
+    }
+
+    // Rethrows the failure of a request as performRequest would have thrown it
+    private static IOException unwrap(ExecutionException e) throws RemoteService.ServiceUnavailableException {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause instanceof RemoteService.ServiceUnavailableException) {
+            throw (RemoteService.ServiceUnavailableException) cause;
+        } else if (cause instanceof IOException) {
+            return (IOException) cause;
+        }
+        return new IOException("Upload failed", cause);
+    }
+
+    private synchronized Semaphore getEndpointWindow(String url) {
+        Semaphore window = mEndpointWindows.get(url);
+        if (null == window) {
+            window = new Semaphore(mWindow);
+            mEndpointWindows.put(url, window);
+        }
+        return window;
+    }
+
+    private synchronized void recordLatency(String url, long millis) {
+        long[] samples = mLatencies.get(url);
+        if (null == samples) {
+            samples = new long[LATENCY_SAMPLES];
+            mLatencies.put(url, samples);
+            mLatencyCounts.put(url, 0);
+        }
+        final int count = mLatencyCounts.get(url);
+        samples[count % LATENCY_SAMPLES] = millis;
+        mLatencyCounts.put(url, count + 1);
+        mAverageLatency = mAverageLatency == 0 ? millis : (mAverageLatency * 7 + millis) / 8;
+    }
+
+    // A moving average of successful request durations across all endpoints, or 0 before the first one
+    public synchronized long getAverageLatency() {
+        return mAverageLatency;
+    }
+
+    // SystemClock.elapsedRealtime() when the last request finished, successfully or not, or -1 if none has
+    public synchronized long getLastRequestFinished() {
+        return mLastRequestFinished;
+    }
+
+    // Returns -1 if hedging is off or there aren't enough samples yet
+    private synchronized long getLatencyPercentile(String url) {
+        if (mHedgePercentile <= 0 || mHedgePercentile >= 100) {
+            return -1;
+        }
+        final long[] samples = mLatencies.get(url);
+        if (null == samples) {
+            return -1;
+        }
+        final int count = Math.min(mLatencyCounts.get(url), LATENCY_SAMPLES);
+        if (count < MIN_LATENCY_SAMPLES) {
+            return -1;
+        }
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        final int index = Math.min(count - 1, (count * mHedgePercentile) / 100);
+        return sorted[index];
+    }
+
+    private static ThreadPoolExecutor newExecutor(int threads) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private final MPConfig mConfig;
+    private final int mWindow;
+    private final int mHedgePercentile;
+    private final ThreadPoolExecutor mUploadExecutor;
+    private final ThreadPoolExecutor mRequestExecutor;
+    private final Map<String, Semaphore> mEndpointWindows = new HashMap<>();
+    private final Map<String, long[]> mLatencies = new HashMap<>();
+    private final Map<String, Integer> mLatencyCounts = new HashMap<>();
+    private long mAverageLatency = 0;
+    private long mLastRequestFinished = -1;
+
+    private static final int LATENCY_SAMPLES = 64;
+    private static final int MIN_LATENCY_SAMPLES = 10;
+    private static final long THREAD_KEEP_ALIVE_SECONDS = 30;
+    private static final String LOGTAG = "MixpanelAPI.Upload";
+}
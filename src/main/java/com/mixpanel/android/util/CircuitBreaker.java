@@ -0,0 +1,164 @@
+package com.mixpanel.android.util;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import java.util.Random;
+
+/**
+ * Tracks the health of a single {@link RemoteService} endpoint.
+ *
+ * A CLOSED breaker lets every request through. After a failure it OPENs, and requests to the
+ * endpoint are skipped until a backoff delay passes. The delay uses decorrelated jitter, so devices
+ * that failed together don't all come back at the same moment, and is never shorter than a
+ * Retry-After the endpoint asked for. Once the delay passes the breaker is HALF_OPEN and lets a
+ * single trial request through, which either closes it again or reopens it with a longer delay.
+ *
+ * Thread-safe.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * Implement this to monitor the endpoints Mixpanel uploads to, and set it with
+     * MPConfig.setCircuitBreakerListener. Called from Mixpanel's upload threads, so implementations
+     * must be thread-safe and return quickly.
+     */
+    public interface StateListener {
+        /**
+         * @param endpoint the url of the endpoint
+         * @param state the new state of its breaker
+         * @param consecutiveFailures the number of failed requests since the last successful one
+         * @param retryDelayMillis how long requests will be skipped for, if the breaker is OPEN
+         */
+        void onCircuitStateChanged(String endpoint, State state, int consecutiveFailures, long retryDelayMillis);
+    }
+
+    public CircuitBreaker(@NonNull String endpoint, @Nullable StateListener listener) {
+        this(endpoint, listener, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS);
+    }
+
+    public CircuitBreaker(@NonNull String endpoint, @Nullable StateListener listener, long baseDelayMillis, long maxDelayMillis) {
+        mEndpoint = endpoint;
+        mListener = listener;
+        mBaseDelayMillis = baseDelayMillis;
+        mMaxDelayMillis = maxDelayMillis;
+        mLastDelayMillis = baseDelayMillis;
+        mRandom = new Random();
+    }
+
+    /**
+     * Returns true if a request may be sent to the endpoint now. If this returns true, the caller
+     * must report the outcome with {@link #onSuccess()}, {@link #onFailure(long)} or {@link #onAbandoned()}.
+     */
+    public boolean allowRequest() {
+        synchronized (this) {
+            if (mState == State.CLOSED) {
+                return true;
+            }
+            if (mState == State.HALF_OPEN || SystemClock.elapsedRealtime() < mOpenUntil) {
+                return false;
+            }
+            mState = State.HALF_OPEN;
+        }
+        notifyListener(State.HALF_OPEN, 0);
+        return true;
+    }
+
+    /**
+     * Whether a response with this code means the endpoint itself is unhealthy: a server error, or
+     * 429 Too Many Requests. Any other response, such as a 400 for a malformed batch, shows the
+     * endpoint is up, and should be reported with {@link #onSuccess()}.
+     */
+    public static boolean isEndpointFailure(int responseCode) {
+        return responseCode >= 500 || responseCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    // True if requests are flowing normally, without consuming a half-open trial
+    public synchronized boolean isClosed() {
+        return mState == State.CLOSED;
+    }
+
+    public void onSuccess() {
+        synchronized (this) {
+            mConsecutiveFailures = 0;
+            mLastDelayMillis = mBaseDelayMillis;
+            if (mState == State.CLOSED) {
+                return;
+            }
+            mState = State.CLOSED;
+        }
+        notifyListener(State.CLOSED, 0);
+    }
+
+    /**
+     * @param retryAfterMillis the delay the endpoint asked for, or 0 if it didn't
+     */
+    public void onFailure(long retryAfterMillis) {
+        final long delay;
+        synchronized (this) {
+            mConsecutiveFailures++;
+            // Decorrelated jitter: a random delay between the base and three times the previous one
+            final long upperBound = Math.max(mBaseDelayMillis + 1, Math.min(mMaxDelayMillis, mLastDelayMillis * 3));
+            mLastDelayMillis = mBaseDelayMillis + (long) (mRandom.nextDouble() * (upperBound - mBaseDelayMillis));
+            delay = Math.max(mLastDelayMillis, retryAfterMillis);
+            mOpenUntil = SystemClock.elapsedRealtime() + delay;
+            mState = State.OPEN;
+        }
+        notifyListener(State.OPEN, delay);
+    }
+
+    // The request was allowed but never reached the endpoint, so it says nothing about its health
+    public synchronized void onAbandoned() {
+        if (mState == State.HALF_OPEN) {
+            mState = State.OPEN;
+        }
+    }
+
+    // Milliseconds until requests will be allowed again, or 0 if they already are
+    public synchronized long getRetryDelay() {
+        if (mState != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, mOpenUntil - SystemClock.elapsedRealtime());
+    }
+
+    public synchronized State getState() {
+        return mState;
+    }
+
+    private void notifyListener(State state, long retryDelayMillis) {
+        if (null == mListener) {
+            return;
+        }
+        final int failures;
+        synchronized (this) {
+            failures = mConsecutiveFailures;
+        }
+        try {
+            mListener.onCircuitStateChanged(mEndpoint, state, failures, retryDelayMillis);
+        } catch (final RuntimeException e) {
+            MPLog.e(LOGTAG, "Circuit breaker listener threw an exception", e);
+        }
+    }
+
+    private final String mEndpoint;
+    private final StateListener mListener;
+    private final long mBaseDelayMillis;
+    private final long mMaxDelayMillis;
+    private final Random mRandom;
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures = 0;
+    private long mLastDelayMillis;
+    private long mOpenUntil = 0;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final long DEFAULT_BASE_DELAY_MILLIS = 60 * 1000;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 60 * 1000;
+    private static final String LOGTAG = "MixpanelAPI.Breaker";
+}
@@ -5,35 +5,69 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import com.mixpanel.android.mpmetrics.MPConfig;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.charset.Charset;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.DeflaterSink;
+import okio.ForwardingSink;
+import okio.GzipSink;
+import okio.Okio;
+import okio.Sink;
 
 /**
- * An HTTP utility class for internal use in the Mixpanel library. Not thread-safe.
+ * An HTTP utility class for internal use in the Mixpanel library. performRequest may be called
+ * from several upload threads at once, the rest of the class is not thread-safe.
  */
 public class HttpService implements RemoteService {
 
+    public static final String COMPRESSION_GZIP = "gzip";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
     private static final String LOGTAG = "MixpanelAPI.Message";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static boolean sIsMixpanelBlocked;
 
     @NonNull private final OkHttpClient okHttpClient;
+    @Nullable private final String requestCompression;
+    private final int requestCompressionThreshold;
 
     public HttpService() {
-       this(new OkHttpClient.Builder()
+        this(null, 0);
+    }
+
+    /**
+     * @param requestCompression the Content-Encoding used for request bodies, either {@link #COMPRESSION_GZIP},
+     *          {@link #COMPRESSION_DEFLATE}, or null to send bodies uncompressed
+     * @param requestCompressionThreshold the smallest body, in bytes, that will be compressed
+     */
+    public HttpService(@Nullable final String requestCompression, final int requestCompressionThreshold) {
+        this(new OkHttpClient.Builder()
                 .retryOnConnectionFailure(false)
                 .connectTimeout(10L, TimeUnit.SECONDS)
-                .build());
+                .build(), requestCompression, requestCompressionThreshold);
     }
 
     public HttpService(@NonNull final OkHttpClient okHttpClient) {
+        this(okHttpClient, null, 0);
+    }
+
+    public HttpService(@NonNull final OkHttpClient okHttpClient, @Nullable final String requestCompression,
+            final int requestCompressionThreshold) {
         this.okHttpClient = okHttpClient;
+        this.requestCompression = requestCompression;
+        this.requestCompressionThreshold = requestCompressionThreshold;
     }
 
     @Override
@@ -100,17 +134,77 @@ public class HttpService implements RemoteService {
     public RemoteResponse performRequest(@NonNull final String endpointUrl, @NonNull final String postBody)
             throws ServiceUnavailableException, IOException {
         MPLog.v(LOGTAG, "Attempting request to " + endpointUrl);
-        final RequestBody requestBody = RequestBody.create(null, postBody);
-        final Request request = new Request.Builder()
+        final byte[] rawBody = postBody.getBytes(UTF_8);
+        final Request.Builder requestBuilder = new Request.Builder()
                 .addHeader("X-AF-CLIENT-TS", String.valueOf(System.currentTimeMillis()))
                 .addHeader("X_AF_DEBUG", MPConfig.DEBUG ? "1" : "0")
-                .url(endpointUrl)
-                .post(requestBody)
-                .build();
-        final Response response = okHttpClient.newCall(request).execute();
+                .url(endpointUrl);
+        CompressedRequestBody compressedBody = null;
+        if (null != requestCompression && rawBody.length >= requestCompressionThreshold) {
+            compressedBody = new CompressedRequestBody(rawBody, requestCompression);
+            requestBuilder.addHeader("Content-Encoding", requestCompression).post(compressedBody);
+        } else {
+            requestBuilder.post(RequestBody.create(null, rawBody));
+        }
+        final Response response = okHttpClient.newCall(requestBuilder.build()).execute();
         final ResponseBody body = response.body();
-        final RemoteResponse remoteResponse = new RemoteResponse(response.code(), response.message(), body != null ? body.string() : "");
+        final long sentBytes = null != compressedBody ? compressedBody.getWrittenBytes() : rawBody.length;
+        final RemoteResponse remoteResponse = new RemoteResponse(response.code(), response.message(),
+                body != null ? body.string() : "", rawBody.length, sentBytes);
         MPLog.d(LOGTAG, remoteResponse.toString());
         return remoteResponse;
     }
+
+    /**
+     * Compresses the body while OkHttp writes it to the connection, so the compressed copy is never
+     * held in memory. The length isn't known up front, so these bodies are sent chunked.
+     */
+    private static class CompressedRequestBody extends RequestBody {
+        CompressedRequestBody(byte[] rawBody, String encoding) {
+            mRawBody = rawBody;
+            mEncoding = encoding;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return null;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            // OkHttp may write the body more than once if it retries, so only the last attempt is counted
+            mWrittenBytes = 0;
+            final Sink counting = new ForwardingSink(sink) {
+                @Override
+                public void write(@NonNull Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    mWrittenBytes += byteCount;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    // OkHttp owns the connection's sink, so closing the compressor must only flush it
+                    flush();
+                }
+            };
+            final Sink compressor;
+            if (COMPRESSION_DEFLATE.equals(mEncoding)) {
+                compressor = new DeflaterSink(counting, new Deflater());
+            } else {
+                compressor = new GzipSink(counting);
+            }
+            final BufferedSink compressed = Okio.buffer(compressor);
+            compressed.write(mRawBody);
+            compressed.close();
+        }
+
+        public long getWrittenBytes() {
+            return mWrittenBytes;
+        }
+
+        private final byte[] mRawBody;
+        private final String mEncoding;
+        private long mWrittenBytes;
+    }
 }
@@ -6,13 +6,26 @@ public class RemoteResponse {
     private final int responseCode;
     @NonNull private final String responseMessage;
     @NonNull private final String responseBody;
+    private final long requestBodyBytes;
+    private final long sentBodyBytes;
 
     @SuppressWarnings("WeakerAccess")
     public RemoteResponse(final int responseCode, @NonNull final String responseMessage,
             @NonNull final String responseBody) {
+        this(responseCode, responseMessage, responseBody, 0, 0);
+    }
+
+    /**
+     * @param requestBodyBytes the size of the request body before any compression
+     * @param sentBodyBytes the size of the request body as it was sent, after any compression
+     */
+    public RemoteResponse(final int responseCode, @NonNull final String responseMessage,
+            @NonNull final String responseBody, final long requestBodyBytes, final long sentBodyBytes) {
         this.responseCode = responseCode;
         this.responseMessage = responseMessage;
         this.responseBody = responseBody;
+        this.requestBodyBytes = requestBodyBytes;
+        this.sentBodyBytes = sentBodyBytes;
     }
 
     public int getResponseCode() {
@@ -29,12 +42,23 @@ public class RemoteResponse {
         return responseBody;
     }
 
+    // Zero when the RemoteService doesn't report body sizes
+    public long getRequestBodyBytes() {
+        return requestBodyBytes;
+    }
+
+    public long getSentBodyBytes() {
+        return sentBodyBytes;
+    }
+
     @Override
     public String toString() {
         return "RemoteResponse{" +
                 "responseCode=" + responseCode +
                 ", responseMessage='" + responseMessage + '\'' +
                 ", responseBody='" + responseBody + '\'' +
+                ", requestBodyBytes=" + requestBodyBytes +
+                ", sentBodyBytes=" + sentBodyBytes +
                 '}';
     }
 }
@@ -25,4 +25,39 @@ public class StringUtils {
         return sb.toString();
     }
 
+    /**
+     * Returns the number of bytes the given chars take up encoded as UTF-8, without encoding them.
+     * Each half of a surrogate pair counts two bytes, so a pair counts its four.
+     */
+    public static int utf8Length(final char[] chars, final int offset, final int length) {
+        int bytes = length;
+        for (int i = offset; i < offset + length; i++) {
+            bytes += extraUtf8Bytes(chars[i]);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the number of bytes s takes up encoded as UTF-8, without encoding it.
+     */
+    public static int utf8Length(final String s) {
+        final int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            bytes += extraUtf8Bytes(s.charAt(i));
+        }
+        return bytes;
+    }
+
+    private static int extraUtf8Bytes(final char c) {
+        if (c < 0x80) {
+            return 0;
+        }
+        // A surrogate is half of a four byte character
+        if (c < 0x800 || (c >= 0xD800 && c <= 0xDFFF)) {
+            return 1;
+        }
+        return 2;
+    }
+
 }